@@ -0,0 +1,138 @@
+package net.celestialdata.plexbotencoder.clients;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Converts the work items and movies the REST clients exchange with the bot to and from JSON, with the
+// object mapper configured the way Quarkus configures it for the REST clients. The lists are the size of
+// a batch of claimed work items and of a bulk movie lookup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private static final int LIST_SIZE = 50;
+
+    private ObjectWriter writer;
+    private ObjectReader workItemReader;
+    private ObjectReader workItemListReader;
+    private ObjectReader movieReader;
+    private ObjectReader movieListReader;
+
+    private WorkItem workItem;
+    private Movie movie;
+    private byte[] workItemJson;
+    private byte[] workItemListJson;
+    private byte[] movieJson;
+    private byte[] movieListJson;
+
+    @Setup
+    public void createJson() throws IOException {
+        var objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        writer = objectMapper.writer();
+        workItemReader = objectMapper.readerFor(WorkItem.class);
+        workItemListReader = objectMapper.readerFor(new TypeReference<List<WorkItem>>() {});
+        movieReader = objectMapper.readerFor(Movie.class);
+        movieListReader = objectMapper.readerFor(new TypeReference<List<Movie>>() {});
+
+        var workItems = new ArrayList<WorkItem>();
+        var movies = new ArrayList<Movie>();
+        for (int i = 0; i < LIST_SIZE; i++) {
+            workItems.add(createWorkItem(i));
+            movies.add(createMovie(i));
+        }
+
+        workItem = workItems.get(0);
+        movie = movies.get(0);
+        workItemJson = writer.writeValueAsBytes(workItem);
+        workItemListJson = writer.writeValueAsBytes(workItems);
+        movieJson = writer.writeValueAsBytes(movie);
+        movieListJson = writer.writeValueAsBytes(movies);
+    }
+
+    private static WorkItem createWorkItem(int i) {
+        var workItem = new WorkItem();
+        workItem.id = i;
+        workItem.progress = "downloading file: 42.17%";
+        workItem.workerAgentName = "encoder-" + i % 4;
+        workItem.mediaType = "movie";
+        workItem.mediaId = 603L + i;
+        workItem.leaseExpires = 1700000000000L + i;
+        workItem.segmentIndex = i % 8;
+        workItem.segmentCount = 8;
+        workItem.segmentStart = 600000L * (i % 8);
+        workItem.segmentEnd = 600000L * (i % 8 + 1);
+        return workItem;
+    }
+
+    private static Movie createMovie(int i) {
+        var movie = new Movie();
+        movie.id = i;
+        movie.tmdbId = 603L + i;
+        movie.imdbId = "tt0133093";
+        movie.title = "The Matrix";
+        movie.year = "1999";
+        movie.resolution = 1080;
+        movie.height = 1080;
+        movie.width = 1920;
+        movie.duration = 8160;
+        movie.codec = "h264";
+        movie.filename = "The Matrix (1999).mkv";
+        movie.filetype = "mkv";
+        movie.folderName = "The Matrix (1999)";
+        movie.isOptimized = false;
+        return movie;
+    }
+
+    @Benchmark
+    public byte[] serializeWorkItem() throws IOException {
+        return writer.writeValueAsBytes(workItem);
+    }
+
+    @Benchmark
+    public WorkItem deserializeWorkItem() throws IOException {
+        return workItemReader.readValue(workItemJson);
+    }
+
+    @Benchmark
+    public List<WorkItem> deserializeWorkItemList() throws IOException {
+        return workItemListReader.readValue(workItemListJson);
+    }
+
+    @Benchmark
+    public byte[] serializeMovie() throws IOException {
+        return writer.writeValueAsBytes(movie);
+    }
+
+    @Benchmark
+    public Movie deserializeMovie() throws IOException {
+        return movieReader.readValue(movieJson);
+    }
+
+    @Benchmark
+    public List<Movie> deserializeMovieList() throws IOException {
+        return movieListReader.readValue(movieListJson);
+    }
+}
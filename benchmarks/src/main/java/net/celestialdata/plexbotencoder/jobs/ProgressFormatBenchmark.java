@@ -0,0 +1,99 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+// Publishes and formats the progress of a job. The download and encoder callbacks publish the progress for
+// every event, the text is only formatted when a report is sent. The other benchmarks are the alternatives
+// for producing the same text.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressFormatBenchmark {
+    private static final long TOTAL_BYTES = 10_000_000;
+
+    private final DecimalFormat decimalFormatter = new DecimalFormat("#0.00");
+    private final JobProgress progress = new JobProgress();
+    private long doneBytes;
+    private double percent;
+
+    @Setup
+    public void startDownloading() {
+        progress.updateBytes(JobStage.DOWNLOADING, 0, TOTAL_BYTES);
+    }
+
+    // Move the progress along a little every call, the same number is never formatted twice in a row
+    private double nextPercent() {
+        percent = percent >= 100 ? 0 : percent + 0.0137;
+        return percent;
+    }
+
+    private long nextBytes() {
+        doneBytes = doneBytes >= TOTAL_BYTES ? 0 : doneBytes + 1370;
+        return doneBytes;
+    }
+
+    // What a download callback costs for every chunk
+    @Benchmark
+    public void jobProgressUpdate() {
+        progress.updateBytes(JobStage.DOWNLOADING, nextBytes(), TOTAL_BYTES);
+    }
+
+    @Benchmark
+    public Object jobProgressReport() {
+        progress.updateBytes(JobStage.DOWNLOADING, nextBytes(), TOTAL_BYTES);
+        return progress.toReport(1);
+    }
+
+    @Benchmark
+    public String jobProgressText() {
+        progress.updateBytes(JobStage.DOWNLOADING, nextBytes(), TOTAL_BYTES);
+        var report = progress.toReport(1);
+        return JobProgress.toText(report.stage, report.percent);
+    }
+
+    @Benchmark
+    public String decimalFormat() {
+        return JobStage.DOWNLOADING.getLabel() + ": " + decimalFormatter.format(nextPercent()) + "%";
+    }
+
+    @Benchmark
+    public String newDecimalFormat() {
+        return JobStage.DOWNLOADING.getLabel() + ": " + new DecimalFormat("#0.00").format(nextPercent()) + "%";
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format("%s: %.2f%%", JobStage.DOWNLOADING.getLabel(), nextPercent());
+    }
+
+    // Round to hundredths and write the digits by hand
+    @Benchmark
+    public String fixedPoint() {
+        var hundredths = Math.round(nextPercent() * 100);
+        var fraction = hundredths % 100;
+        return new StringBuilder(32)
+                .append(JobStage.DOWNLOADING.getLabel())
+                .append(": ")
+                .append(hundredths / 100)
+                .append('.')
+                .append(fraction < 10 ? "0" : "")
+                .append(fraction)
+                .append('%')
+                .toString();
+    }
+}
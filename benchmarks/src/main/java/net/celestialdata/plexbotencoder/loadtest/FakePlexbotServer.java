@@ -0,0 +1,768 @@
+package net.celestialdata.plexbotencoder.loadtest;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.celestialdata.plexbotencoder.clients.models.ClaimRequest;
+import net.celestialdata.plexbotencoder.clients.models.HistoryItem;
+import net.celestialdata.plexbotencoder.clients.models.QueueItem;
+import net.celestialdata.plexbotencoder.clients.models.SegmentStatus;
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
+import net.celestialdata.plexbotencoder.transfer.Checksums;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+// A stand-in for the bot that serves the queue, work, history, segment, movie and episode endpoints the worker
+// uses, backed by a synthetic media library and kept in memory. It behaves like the bot where that matters for
+// races: the next queue item is handed out without reserving it, while claims move items to leased work items
+// at once. Every request can be delayed and the JSON endpoints and upload parts can fail at random to test the
+// error handling of the workers, and file transfers can be damaged on the way to test the checksums. The server
+// counts what it sees, including titles that were handed to more than one worker.
+public class FakePlexbotServer {
+    private static final Pattern QUEUE_ITEM = Pattern.compile("/api/v1/encoding/queue/(\\d+)");
+    private static final Pattern WORK_ITEM = Pattern.compile("/api/v1/encoding/work/(\\d+)");
+    private static final Pattern MEDIA = Pattern.compile("/api/v1/(movies|episodes)/(\\d+)");
+    private static final Pattern MEDIA_LOOKUP = Pattern.compile("/api/v1/(movies|episodes)/lookup");
+    private static final Pattern MEDIA_DOWNLOAD = Pattern.compile("/api/v1/(movies|episodes)/download/(\\d+)");
+    private static final Pattern MEDIA_UPLOAD = Pattern.compile("/api/v1/(movies|episodes)/upload");
+    private static final Pattern UPLOAD_PART = Pattern.compile("/api/v1/(movies|episodes)/upload/(\\d+)/parts/(\\d+)");
+    private static final Pattern UPLOAD_COMPLETE = Pattern.compile("/api/v1/(movies|episodes)/upload/(\\d+)/complete");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern SEGMENT = Pattern.compile("/api/v1/encoding/segments/(\\w+)/(\\d+)/(\\d+)");
+    private static final Pattern SEGMENTS = Pattern.compile("/api/v1/encoding/segments/(\\w+)/(\\d+)");
+
+    private final Object lock = new Object();
+    private final Map<Integer, QueueItem> queue = new LinkedHashMap<>();
+    private final Map<Integer, WorkItem> work = new LinkedHashMap<>();
+    private final Map<Integer, Integer> leaseSeconds = new HashMap<>();
+    private final Map<String, Integer> activeClaims = new HashMap<>();
+    private final Set<String> finishedJobs = new HashSet<>();
+    private final Set<String> enqueuedTitles = new HashSet<>();
+    private final Map<String, String> titleResults = new HashMap<>();
+    private final Map<String, Integer> segmentCounts = new HashMap<>();
+    private final Map<String, Set<Integer>> uploadedSegments = new HashMap<>();
+    private final Map<String, Map<Long, ReceivedPart>> uploadedParts = new HashMap<>();
+    private final Map<Path, Long> fileChecksums = new ConcurrentHashMap<>();
+    private final Statistics statistics = new Statistics();
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private final MediaLibrary library;
+    private final Path segmentFolder;
+    private HttpServer server;
+    private ExecutorService requestExecutor;
+    private ScheduledExecutorService leaseExecutor;
+    private int nextId = 1;
+    private volatile int latency = 0;
+    private volatile double errorRate = 0;
+    private volatile double corruptionRate = 0;
+    private volatile boolean legacyApi = false;
+
+    // What the server has seen so far, the counters only go up
+    public static class Statistics {
+        public long requests;
+        public long injectedErrors;
+        public long claims;
+        public long duplicateClaims;
+        public long expiredLeases;
+        public long downloadedBytes;
+        public long uploads;
+        public long uploadedBytes;
+        public long uploadParts;
+        public long corruptedTransfers;
+        public long completed;
+        public long skipped;
+        public long failed;
+
+        Statistics copy() {
+            var copy = new Statistics();
+            copy.requests = requests;
+            copy.injectedErrors = injectedErrors;
+            copy.claims = claims;
+            copy.duplicateClaims = duplicateClaims;
+            copy.expiredLeases = expiredLeases;
+            copy.uploads = uploads;
+            copy.downloadedBytes = downloadedBytes;
+            copy.uploadedBytes = uploadedBytes;
+            copy.uploadParts = uploadParts;
+            copy.corruptedTransfers = corruptedTransfers;
+            copy.completed = completed;
+            copy.skipped = skipped;
+            copy.failed = failed;
+            return copy;
+        }
+    }
+
+    public FakePlexbotServer(MediaLibrary library, Path segmentFolder) {
+        this.library = library;
+        this.segmentFolder = segmentFolder;
+    }
+
+    // Delay every request by the given number of milliseconds, plus up to half of that at random
+    public void setLatency(int latency) {
+        this.latency = latency;
+    }
+
+    // The share of requests to the JSON endpoints and of upload parts that fail with a 503 error, the other file
+    // transfers never fail since the worker has no way to retry them on their own
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    // The share of downloads that have a byte flipped on the way, and of uploads and upload parts that the server
+    // reports a wrong checksum for as if they arrived damaged
+    public void setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = corruptionRate;
+    }
+
+    // Answer the claim, bulk lookup, batched progress and upload part endpoints with a 404 error like older versions of the bot
+    public void setLegacyApi(boolean legacyApi) {
+        this.legacyApi = legacyApi;
+    }
+
+    // Start listening on the given port of the loopback interface, or on a free port if it is 0
+    public void start(int port) throws IOException {
+        Files.createDirectories(segmentFolder);
+
+        requestExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 100);
+        server.createContext("/", this::handle);
+        server.setExecutor(requestExecutor);
+        server.start();
+
+        leaseExecutor = Executors.newSingleThreadScheduledExecutor();
+        leaseExecutor.scheduleWithFixedDelay(this::expireLeases, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        server.stop(0);
+        requestExecutor.shutdownNow();
+        leaseExecutor.shutdownNow();
+    }
+
+    public String getAddress() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    // Add every title of the library to the queue
+    public void enqueueLibrary() {
+        library.getMovies().forEach(movie -> enqueue("movie", movie.tmdbId));
+        library.getEpisodes().forEach(episode -> enqueue("episode", episode.tvdbId));
+    }
+
+    public void enqueue(String mediaType, long mediaId) {
+        var queueItem = new QueueItem();
+        queueItem.mediaType = mediaType;
+        queueItem.mediaId = mediaId;
+
+        synchronized (lock) {
+            enqueuedTitles.add(titleKey(mediaType, mediaId));
+            addQueueItem(queueItem);
+        }
+    }
+
+    // True once every enqueued title has an entry in the history and nothing is queued or being worked on
+    public boolean isFinished() {
+        synchronized (lock) {
+            return queue.isEmpty() && work.isEmpty() && titleResults.keySet().containsAll(enqueuedTitles);
+        }
+    }
+
+    public Statistics getStatistics() {
+        synchronized (lock) {
+            return statistics.copy();
+        }
+    }
+
+    // The last history status of every title that has one
+    public Map<String, String> getTitleResults() {
+        synchronized (lock) {
+            return new HashMap<>(titleResults);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency + ThreadLocalRandom.current().nextInt(latency / 2 + 1));
+            }
+
+            var method = exchange.getRequestMethod();
+            var path = exchange.getRequestURI().getPath();
+            synchronized (lock) {
+                statistics.requests += 1;
+            }
+
+            if (!isTransfer(path) && errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                synchronized (lock) {
+                    statistics.injectedErrors += 1;
+                }
+
+                sendEmpty(exchange, 503);
+                return;
+            }
+
+            if (legacyApi && (path.equals("/api/v1/encoding/queue/claim") || path.equals("/api/v1/encoding/work/progress") ||
+                    MEDIA_LOOKUP.matcher(path).matches() || UPLOAD_PART.matcher(path).matches())) {
+                sendEmpty(exchange, 404);
+                return;
+            }
+
+            route(exchange, method, path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendEmpty(exchange, 500);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean isTransfer(String path) {
+        return MEDIA_DOWNLOAD.matcher(path).matches() || MEDIA_UPLOAD.matcher(path).matches() || SEGMENT.matcher(path).matches();
+    }
+
+    private void route(HttpExchange exchange, String method, String path) throws IOException, InterruptedException {
+        Matcher matcher;
+        var query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (path.equals("/api/v1/encoding/queue")) {
+            if (method.equals("GET")) {
+                synchronized (lock) {
+                    sendJson(exchange, new ArrayList<>(queue.values()));
+                }
+            } else if (method.equals("POST")) {
+                var queueItem = objectMapper.readValue(exchange.getRequestBody(), QueueItem.class);
+                synchronized (lock) {
+                    sendJson(exchange, addQueueItem(queueItem));
+                }
+            }
+        } else if (path.equals("/api/v1/encoding/queue/next")) {
+            sendNextQueueItem(exchange, getInteger(query, "wait"));
+        } else if (path.equals("/api/v1/encoding/queue/claim")) {
+            var claimRequest = objectMapper.readValue(exchange.getRequestBody(), ClaimRequest.class);
+            sendJson(exchange, claim(claimRequest, getInteger(query, "wait")));
+        } else if ((matcher = QUEUE_ITEM.matcher(path)).matches()) {
+            var id = Integer.parseInt(matcher.group(1));
+            synchronized (lock) {
+                if (method.equals("DELETE")) {
+                    queue.remove(id);
+                    sendEmpty(exchange, 204);
+                } else if (queue.containsKey(id)) {
+                    sendJson(exchange, queue.get(id));
+                } else {
+                    sendEmpty(exchange, 404);
+                }
+            }
+        } else if (path.equals("/api/v1/encoding/work")) {
+            if (method.equals("GET")) {
+                synchronized (lock) {
+                    sendJson(exchange, new ArrayList<>(work.values()));
+                }
+            } else if (method.equals("POST")) {
+                var workItem = objectMapper.readValue(exchange.getRequestBody(), WorkItem.class);
+                synchronized (lock) {
+                    workItem.id = nextId++;
+                    work.put(workItem.id, workItem);
+                    recordClaim(workItem);
+                    sendJson(exchange, workItem.id);
+                }
+            }
+        } else if (path.equals("/api/v1/encoding/work/progress")) {
+            List<WorkProgress> reports = objectMapper.readValue(exchange.getRequestBody(), new TypeReference<>() {});
+            synchronized (lock) {
+                reports.forEach(report -> updateProgress(report.workItemId, report.progress));
+            }
+            sendEmpty(exchange, 204);
+        } else if ((matcher = WORK_ITEM.matcher(path)).matches()) {
+            var id = Integer.parseInt(matcher.group(1));
+            synchronized (lock) {
+                if (method.equals("DELETE")) {
+                    var workItem = work.remove(id);
+                    if (workItem != null) {
+                        leaseSeconds.remove(id);
+                        releaseClaim(workItem);
+                    }
+
+                    sendEmpty(exchange, 204);
+                } else if (!work.containsKey(id)) {
+                    sendEmpty(exchange, 404);
+                } else {
+                    if (method.equals("PUT")) {
+                        updateProgress(id, query.containsKey("progress") ? query.get("progress").get(0) : null);
+                    }
+
+                    sendJson(exchange, work.get(id));
+                }
+            }
+        } else if (path.equals("/api/v1/encoding/history")) {
+            var historyItem = objectMapper.readValue(exchange.getRequestBody(), HistoryItem.class);
+            synchronized (lock) {
+                sendJson(exchange, addHistoryItem(historyItem));
+            }
+        } else if ((matcher = MEDIA_LOOKUP.matcher(path)).matches()) {
+            var mediaType = matcher.group(1);
+            sendJson(exchange, query.getOrDefault("id", List.of()).stream()
+                    .map(id -> getMedia(mediaType, Long.parseLong(id)))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()));
+        } else if ((matcher = MEDIA_DOWNLOAD.matcher(path)).matches()) {
+            var file = library.getFile(Integer.parseInt(matcher.group(2)));
+            sendFile(exchange, file, file != null ? getChecksum(file) : Checksums.UNKNOWN);
+        } else if (MEDIA_UPLOAD.matcher(path).matches()) {
+            var checksum = new CRC32C();
+            var bytes = receive(exchange.getRequestBody(), checksum);
+            synchronized (lock) {
+                statistics.uploads += 1;
+                statistics.uploadedBytes += bytes;
+            }
+            addDigest(exchange, receivedChecksum(checksum));
+            sendJson(exchange, Map.of());
+        } else if ((matcher = UPLOAD_PART.matcher(path)).matches()) {
+            receivePart(exchange, matcher.group(1) + "/" + matcher.group(2));
+        } else if ((matcher = UPLOAD_COMPLETE.matcher(path)).matches()) {
+            completeUpload(exchange, matcher.group(1) + "/" + matcher.group(2), Long.parseLong(query.get("size").get(0)),
+                    Checksums.fromDigest(exchange.getRequestHeaders().getFirst(Checksums.DIGEST_HEADER)));
+        } else if ((matcher = MEDIA.matcher(path)).matches()) {
+            var media = getMedia(matcher.group(1), Long.parseLong(matcher.group(2)));
+            if (media != null) {
+                sendJson(exchange, media);
+            } else {
+                sendEmpty(exchange, 404);
+            }
+        } else if ((matcher = SEGMENT.matcher(path)).matches()) {
+            var segment = segmentFolder.resolve(matcher.group(1) + "-" + matcher.group(2) + "-" + matcher.group(3) + ".mkv");
+            if (method.equals("POST")) {
+                Files.copy(exchange.getRequestBody(), segment, StandardCopyOption.REPLACE_EXISTING);
+                sendJson(exchange, addSegment(matcher.group(1), Long.parseLong(matcher.group(2)), Integer.parseInt(matcher.group(3))));
+            } else {
+                sendFile(exchange, Files.exists(segment) ? segment : null, Checksums.UNKNOWN);
+            }
+        } else if ((matcher = SEGMENTS.matcher(path)).matches() && method.equals("DELETE")) {
+            try (var files = Files.newDirectoryStream(segmentFolder, matcher.group(1) + "-" + matcher.group(2) + "-*.mkv")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            sendEmpty(exchange, 204);
+        } else {
+            sendEmpty(exchange, 404);
+        }
+    }
+
+    private int addQueueItem(QueueItem queueItem) {
+        queueItem.id = nextId++;
+        queue.put(queueItem.id, queueItem);
+
+        if (queueItem.segmentCount != null) {
+            segmentCounts.put(titleKey(queueItem.mediaType, queueItem.mediaId), queueItem.segmentCount);
+        }
+
+        lock.notifyAll();
+        return queueItem.id;
+    }
+
+    // Hand out the first queue item without reserving it, like the bot does, so two workers that ask
+    // at the same time get the same item
+    private void sendNextQueueItem(HttpExchange exchange, Integer waitSeconds) throws IOException, InterruptedException {
+        QueueItem queueItem;
+        synchronized (lock) {
+            awaitQueueItems(waitSeconds);
+            queueItem = queue.values().stream().findFirst().orElse(null);
+        }
+
+        if (queueItem != null) {
+            sendJson(exchange, queueItem);
+        } else {
+            sendEmpty(exchange, 204);
+        }
+    }
+
+    private List<WorkItem> claim(ClaimRequest claimRequest, Integer waitSeconds) throws InterruptedException {
+        synchronized (lock) {
+            awaitQueueItems(waitSeconds);
+
+            var claimedItems = new ArrayList<WorkItem>();
+            var iterator = queue.values().iterator();
+            while (iterator.hasNext() && claimedItems.size() < claimRequest.count) {
+                var queueItem = iterator.next();
+                iterator.remove();
+
+                var workItem = new WorkItem();
+                workItem.id = nextId++;
+                workItem.workerAgentName = claimRequest.workerAgentName;
+                workItem.mediaType = queueItem.mediaType;
+                workItem.mediaId = queueItem.mediaId;
+                workItem.segmentIndex = queueItem.segmentIndex;
+                workItem.segmentCount = queueItem.segmentCount;
+                workItem.segmentStart = queueItem.segmentStart;
+                workItem.segmentEnd = queueItem.segmentEnd;
+                workItem.leaseExpires = System.currentTimeMillis() + claimRequest.leaseSeconds * 1000L;
+
+                work.put(workItem.id, workItem);
+                leaseSeconds.put(workItem.id, claimRequest.leaseSeconds);
+                recordClaim(workItem);
+                claimedItems.add(workItem);
+            }
+
+            return claimedItems;
+        }
+    }
+
+    // Wait up to the given number of seconds for the queue to have an item, called while holding the lock
+    private void awaitQueueItems(Integer waitSeconds) throws InterruptedException {
+        if (waitSeconds == null) {
+            return;
+        }
+
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+        while (queue.isEmpty()) {
+            var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return;
+            }
+
+            lock.wait(remaining);
+        }
+    }
+
+    // Every progress update renews the lease of a claimed work item
+    private void updateProgress(Integer workItemId, String progress) {
+        var workItem = work.get(workItemId);
+        if (workItem == null) {
+            return;
+        }
+
+        if (progress != null) {
+            workItem.progress = progress;
+        }
+
+        if (leaseSeconds.containsKey(workItemId)) {
+            workItem.leaseExpires = System.currentTimeMillis() + leaseSeconds.get(workItemId) * 1000L;
+        }
+    }
+
+    // Put work items whose lease ran out back in the queue
+    private void expireLeases() {
+        synchronized (lock) {
+            var now = System.currentTimeMillis();
+            var iterator = work.values().iterator();
+            while (iterator.hasNext()) {
+                var workItem = iterator.next();
+                if (workItem.leaseExpires == null || workItem.leaseExpires > now) {
+                    continue;
+                }
+
+                iterator.remove();
+                leaseSeconds.remove(workItem.id);
+                releaseClaim(workItem);
+                statistics.expiredLeases += 1;
+
+                var queueItem = new QueueItem();
+                queueItem.mediaType = workItem.mediaType;
+                queueItem.mediaId = workItem.mediaId;
+                queueItem.segmentIndex = workItem.segmentIndex;
+                queueItem.segmentCount = workItem.segmentCount;
+                queueItem.segmentStart = workItem.segmentStart;
+                queueItem.segmentEnd = workItem.segmentEnd;
+                addQueueItem(queueItem);
+            }
+        }
+    }
+
+    // A claim is a duplicate if another worker is still working on the same job, or the job was already finished
+    private void recordClaim(WorkItem workItem) {
+        var key = jobKey(workItem);
+        statistics.claims += 1;
+        if (activeClaims.getOrDefault(key, 0) > 0 || finishedJobs.contains(key)) {
+            statistics.duplicateClaims += 1;
+        }
+
+        activeClaims.merge(key, 1, Integer::sum);
+    }
+
+    private void releaseClaim(WorkItem workItem) {
+        activeClaims.computeIfPresent(jobKey(workItem), (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private int addHistoryItem(HistoryItem historyItem) {
+        historyItem.id = nextId++;
+
+        var status = historyItem.status != null ? historyItem.status : "";
+        if (status.startsWith("Completed")) {
+            statistics.completed += 1;
+        } else if (status.startsWith("Skipped")) {
+            statistics.skipped += 1;
+        } else {
+            statistics.failed += 1;
+        }
+
+        var key = titleKey(historyItem.mediaType, historyItem.mediaId);
+        titleResults.put(key, status);
+        finishedJobs.add(key);
+        return historyItem.id;
+    }
+
+    // The upload that completes the last missing segment of a title tells its worker to join them
+    private SegmentStatus addSegment(String mediaType, long mediaId, int index) {
+        synchronized (lock) {
+            var key = titleKey(mediaType, mediaId);
+            finishedJobs.add(key + "#" + index);
+
+            var segments = uploadedSegments.computeIfAbsent(key, k -> new HashSet<>());
+            var added = segments.add(index);
+
+            var status = new SegmentStatus();
+            status.segmentCount = segmentCounts.getOrDefault(key, 0);
+            status.completedSegments = segments.size();
+            status.assemble = added && segments.size() == status.segmentCount;
+            return status;
+        }
+    }
+
+    private Object getMedia(String mediaType, long id) {
+        return mediaType.equals("movies") ? library.getMovie(id) : library.getEpisode(id);
+    }
+
+    // Keep track of the byte ranges of an upload in parts, a part that is sent again replaces the earlier one
+    private void receivePart(HttpExchange exchange, String upload) throws IOException {
+        var range = CONTENT_RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Content-Range")));
+        if (!range.matches()) {
+            sendEmpty(exchange, 400);
+            return;
+        }
+
+        var start = Long.parseLong(range.group(1));
+        var length = Long.parseLong(range.group(2)) - start + 1;
+        var checksum = new CRC32C();
+        var bytes = receive(exchange.getRequestBody(), checksum);
+        if (bytes != length) {
+            sendEmpty(exchange, 400);
+            return;
+        }
+
+        var partChecksum = receivedChecksum(checksum);
+        synchronized (lock) {
+            statistics.uploadParts += 1;
+            statistics.uploadedBytes += bytes;
+            uploadedParts.computeIfAbsent(upload, key -> new HashMap<>()).put(start, new ReceivedPart(length, partChecksum));
+        }
+        addDigest(exchange, partChecksum);
+        sendEmpty(exchange, 204);
+    }
+
+    // The parts of an upload have to cover the whole file without gaps before it counts as uploaded, and have to
+    // match the checksum of the file when the worker sends one
+    private void completeUpload(HttpExchange exchange, String upload, long size, long expectedChecksum) throws IOException {
+        synchronized (lock) {
+            var parts = new TreeMap<>(uploadedParts.getOrDefault(upload, Map.of()));
+            long covered = 0;
+            long checksum = 0;
+            for (Map.Entry<Long, ReceivedPart> part : parts.entrySet()) {
+                if (part.getKey() != covered) {
+                    break;
+                }
+
+                covered += part.getValue().length;
+                checksum = Checksums.combine(checksum, part.getValue().checksum, part.getValue().length);
+            }
+
+            if (covered != size) {
+                sendEmpty(exchange, 409);
+                return;
+            }
+
+            if (expectedChecksum != Checksums.UNKNOWN && expectedChecksum != checksum) {
+                sendEmpty(exchange, 422);
+                return;
+            }
+
+            uploadedParts.remove(upload);
+            statistics.uploads += 1;
+        }
+        sendEmpty(exchange, 204);
+    }
+
+    // Send a file, answering range requests like the bot does. Only a file sent with its checksum is ever damaged.
+    private void sendFile(HttpExchange exchange, Path file, long checksum) throws IOException {
+        if (file == null) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+
+        var size = Files.size(file);
+        addDigest(exchange, checksum);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            // The workers ask for the size of a file to reserve space for it before the download
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(size));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        long start = 0;
+        long end = size - 1;
+
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            var bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            end = bounds.length > 1 && !bounds[1].isEmpty() ? Math.min(size - 1, Long.parseLong(bounds[1])) : end;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+        try (var body = exchange.getResponseBody(); var channel = Files.newByteChannel(file)) {
+            channel.position(start);
+            var input = Channels.newInputStream(channel);
+            var buffer = new byte[64 * 1024];
+            var remaining = end - start + 1;
+            var corrupt = checksum != Checksums.UNKNOWN && !legacyApi && isCorrupted();
+            int read;
+            while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                if (corrupt) {
+                    buffer[ThreadLocalRandom.current().nextInt(read)] ^= 1;
+                    corrupt = false;
+                }
+
+                body.write(buffer, 0, read);
+                remaining -= read;
+                synchronized (lock) {
+                    statistics.downloadedBytes += read;
+                }
+            }
+        }
+    }
+
+    // The checksum of a file of the library, these never change while the server runs
+    private long getChecksum(Path file) {
+        return fileChecksums.computeIfAbsent(file, key -> {
+            try (var input = Files.newInputStream(key)) {
+                var checksum = new CRC32C();
+                receive(input, checksum);
+                return checksum.getValue();
+            } catch (IOException e) {
+                return Checksums.UNKNOWN;
+            }
+        });
+    }
+
+    // Older versions of the bot send no checksums
+    private void addDigest(HttpExchange exchange, long checksum) {
+        if (!legacyApi && checksum != Checksums.UNKNOWN) {
+            exchange.getResponseHeaders().add(Checksums.DIGEST_HEADER, Checksums.toDigest(checksum));
+        }
+    }
+
+    private long receivedChecksum(CRC32C checksum) {
+        return isCorrupted() ? checksum.getValue() ^ 1 : checksum.getValue();
+    }
+
+    private boolean isCorrupted() {
+        if (corruptionRate <= 0 || ThreadLocalRandom.current().nextDouble() >= corruptionRate) {
+            return false;
+        }
+
+        synchronized (lock) {
+            statistics.corruptedTransfers += 1;
+        }
+        return true;
+    }
+
+    private static long receive(InputStream input, CRC32C checksum) throws IOException {
+        var buffer = new byte[64 * 1024];
+        long bytes = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            checksum.update(buffer, 0, read);
+            bytes += read;
+        }
+
+        return bytes;
+    }
+
+    private void sendJson(HttpExchange exchange, Object body) throws IOException {
+        var json = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(json);
+        }
+    }
+
+    private void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static class ReceivedPart {
+        final long length;
+        final long checksum;
+
+        ReceivedPart(long length, long checksum) {
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        var query = new HashMap<String, List<String>>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+
+        for (String parameter : rawQuery.split("&")) {
+            var separator = parameter.indexOf('=');
+            var name = URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), StandardCharsets.UTF_8);
+            var value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+            query.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+
+        return query;
+    }
+
+    private static Integer getInteger(Map<String, List<String>> query, String name) {
+        return query.containsKey(name) ? Integer.valueOf(query.get(name).get(0)) : null;
+    }
+
+    private static String titleKey(String mediaType, Long mediaId) {
+        return mediaType + ":" + mediaId;
+    }
+
+    private static String jobKey(WorkItem workItem) {
+        var key = titleKey(workItem.mediaType, workItem.mediaId);
+        return workItem.segmentIndex != null ? key + "#" + workItem.segmentIndex : key;
+    }
+}
@@ -0,0 +1,245 @@
+package net.celestialdata.plexbotencoder.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs a fleet of workers against the fake bot and reports how it did: the jobs finished per hour, the average
+// time of every stage of a job, the claims that handed a title to more than one worker, and the failures.
+// Every worker is a separate process of the packaged application with its own temp folder and metrics port.
+//
+//   java -cp target/benchmarks.jar net.celestialdata.plexbotencoder.loadtest.FleetHarness --workers 3 --movies 9
+//
+// Any other setting of the workers can be passed with --set, for example --set AppSettings.longPolling=true.
+// With --restart-after every worker is stopped after that many seconds and started again, to test how the workers
+// continue the jobs they were running.
+public class FleetHarness {
+    private static final Pattern STAGE_METRIC = Pattern.compile(
+            "^plexbot_stage_duration_seconds_(sum|count)\\{.*stage=\"([^\"]+)\".*}\\s+(\\S+)$");
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final Map<String, String> workerSettings = new LinkedHashMap<>();
+    private final List<Process> workers = new ArrayList<>();
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    public static void main(String[] args) throws Exception {
+        var harness = new FleetHarness();
+        harness.parseArguments(args);
+        harness.run();
+    }
+
+    private FleetHarness() {
+        options.put("workers", "3");
+        options.put("slots", "1");
+        options.put("movies", "6");
+        options.put("episodes", "0");
+        options.put("clip-duration", "20");
+        options.put("resolution", "640x360");
+        options.put("crf", "28");
+        options.put("latency", "0");
+        options.put("error-rate", "0");
+        options.put("corruption-rate", "0");
+        options.put("legacy-api", "false");
+        options.put("restart-after", "0");
+        options.put("timeout", "1800");
+        options.put("port", "0");
+        options.put("metrics-port", "9100");
+        options.put("jar", "../target/quarkus-app/quarkus-run.jar");
+        options.put("folder", Paths.get(System.getProperty("java.io.tmpdir"), "plexbot-fleet").toString());
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+
+            var name = args[i].substring(2);
+            var value = args[++i];
+            if (name.equals("set")) {
+                var separator = value.indexOf('=');
+                workerSettings.put(value.substring(0, separator), value.substring(separator + 1));
+            } else if (options.containsKey(name)) {
+                options.put(name, value);
+            } else {
+                throw new IllegalArgumentException("Unknown option --" + name + ", the options are " + options.keySet() + " and --set");
+            }
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private void run() throws Exception {
+        var folder = Paths.get(options.get("folder"));
+        System.out.println("Generating the media library in " + folder);
+        var library = new MediaLibrary(folder.resolve("library"), intOption("movies"), intOption("episodes"),
+                intOption("clip-duration"), options.get("resolution"));
+
+        var server = new FakePlexbotServer(library, folder.resolve("segments"));
+        server.setLatency(intOption("latency"));
+        server.setErrorRate(Double.parseDouble(options.get("error-rate")));
+        server.setCorruptionRate(Double.parseDouble(options.get("corruption-rate")));
+        server.setLegacyApi(Boolean.parseBoolean(options.get("legacy-api")));
+        server.start(intOption("port"));
+        server.enqueueLibrary();
+        System.out.println("Serving " + library.getTitleCount() + " titles at " + server.getAddress());
+
+        var start = System.nanoTime();
+        var deadline = start + TimeUnit.SECONDS.toNanos(intOption("timeout"));
+        var unexpectedExits = 0;
+        double seconds;
+        Map<String, double[]> stageTimes;
+        try {
+            for (int i = 1; i <= intOption("workers"); i++) {
+                Files.deleteIfExists(folder.resolve("worker-" + i + ".log"));
+                workers.add(startWorker(folder, i, server.getAddress()));
+            }
+
+            // Restart every worker once in the middle of the run, the way a service manager stops and starts them
+            var restartTime = intOption("restart-after") > 0 ? start + TimeUnit.SECONDS.toNanos(intOption("restart-after")) : Long.MAX_VALUE;
+            while (!server.isFinished() && System.nanoTime() < deadline && workers.stream().anyMatch(Process::isAlive)) {
+                if (System.nanoTime() >= restartTime) {
+                    System.out.println("Restarting the workers");
+                    stopWorkers();
+                    for (int i = 1; i <= workers.size(); i++) {
+                        workers.set(i - 1, startWorker(folder, i, server.getAddress()));
+                    }
+                    restartTime = Long.MAX_VALUE;
+                }
+
+                Thread.sleep(1000);
+            }
+
+            seconds = (System.nanoTime() - start) / 1e9;
+            unexpectedExits = (int) workers.stream().filter(worker -> !worker.isAlive()).count();
+            stageTimes = scrapeStageTimes();
+        } finally {
+            stopWorkers();
+            server.stop();
+        }
+
+        printReport(server, library.getTitleCount(), seconds, stageTimes, unexpectedExits);
+    }
+
+    private Process startWorker(Path folder, int index, String apiAddress) throws IOException {
+        var workerFolder = folder.resolve("worker-" + index);
+        var tempFolder = workerFolder.resolve("tmp");
+        Files.createDirectories(tempFolder);
+
+        var settings = new LinkedHashMap<String, String>();
+        settings.put("AppSettings.workerName", "worker-" + index);
+        settings.put("AppSettings.apiAddress/mp-rest/url", apiAddress);
+        settings.put("AppSettings.username", "fleet");
+        settings.put("AppSettings.password", "fleet");
+        settings.put("AppSettings.logLevel", "INFO");
+        settings.put("AppSettings.crf", options.get("crf"));
+        settings.put("AppSettings.accelerationHardware", "none");
+        settings.put("AppSettings.maxConcurrentJobs", options.get("slots"));
+        settings.put("AppSettings.tempFolder", tempFolder + "/");
+        settings.put("AppSettings.metricsPort", String.valueOf(intOption("metrics-port") + index));
+        settings.putAll(workerSettings);
+
+        // The worker refuses to start without a configuration file, so the settings of the application go there
+        // and anything else is passed as a system property
+        var configuration = new StringBuilder("AppSettings:\n");
+        var command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        settings.forEach((name, value) -> {
+            if (name.startsWith("AppSettings.")) {
+                configuration.append("  ").append(name.substring("AppSettings.".length()))
+                        .append(": \"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"\n");
+            } else {
+                command.add("-D" + name + "=" + value);
+            }
+        });
+        Files.createDirectories(workerFolder.resolve("config"));
+        Files.writeString(workerFolder.resolve("config").resolve("application.yaml"), configuration);
+
+        command.add("-jar");
+        command.add(Paths.get(options.get("jar")).toAbsolutePath().toString());
+
+        return new ProcessBuilder(command)
+                .directory(workerFolder.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(folder.resolve("worker-" + index + ".log").toFile()))
+                .start();
+    }
+
+    private void stopWorkers() throws InterruptedException {
+        workers.forEach(Process::destroy);
+        for (Process worker : workers) {
+            if (!worker.waitFor(120, TimeUnit.SECONDS)) {
+                worker.destroyForcibly();
+            }
+        }
+    }
+
+    // Add up the stage timers of every worker, the values are the total seconds and the number of jobs per stage
+    private Map<String, double[]> scrapeStageTimes() {
+        var stageTimes = new TreeMap<String, double[]>();
+        for (int i = 1; i <= workers.size(); i++) {
+            var request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + (intOption("metrics-port") + i) + "/q/metrics"))
+                    .timeout(Duration.ofSeconds(5))
+                    .build();
+
+            try {
+                var metrics = httpClient.send(request, HttpResponse.BodyHandlers.ofLines()).body();
+                metrics.map(STAGE_METRIC::matcher).filter(Matcher::matches).forEach(matcher -> {
+                    var times = stageTimes.computeIfAbsent(matcher.group(2), stage -> new double[2]);
+                    times[matcher.group(1).equals("sum") ? 0 : 1] += Double.parseDouble(matcher.group(3));
+                });
+            } catch (IOException e) {
+                System.out.println("Unable to read the metrics of worker-" + i + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return stageTimes;
+    }
+
+    private void printReport(FakePlexbotServer server, int titleCount, double seconds, Map<String, double[]> stageTimes, int unexpectedExits) {
+        var statistics = server.getStatistics();
+        var results = server.getTitleResults().values();
+        var completed = results.stream().filter(status -> status.startsWith("Completed")).count();
+        var skipped = results.stream().filter(status -> status.startsWith("Skipped")).count();
+
+        // A title counts once however many workers encoded it, the history entries show the duplicate work
+        System.out.println();
+        System.out.printf("Workers           %s with %s slot(s) each%n", options.get("workers"), options.get("slots"));
+        System.out.printf("Titles            %d finished of %d enqueued (%d completed, %d skipped, %d failed)%n",
+                results.size(), titleCount, completed, skipped, results.size() - completed - skipped);
+        System.out.printf("History entries   %d completed, %d skipped, %d failed%n",
+                statistics.completed, statistics.skipped, statistics.failed);
+        System.out.printf("Elapsed           %.1f seconds%s%n", seconds, server.isFinished() ? "" : " (stopped before the queue was done)");
+        System.out.printf("Throughput        %.1f jobs/hour%n", (completed + skipped) * 3600 / seconds);
+        System.out.printf("Claims            %d (%d duplicate, %d leases expired)%n",
+                statistics.claims, statistics.duplicateClaims, statistics.expiredLeases);
+        System.out.printf("Downloads         %.1f MiB%n", statistics.downloadedBytes / 1048576.);
+        System.out.printf("Uploads           %d (%.1f MiB, %d part(s) of uploads in parts)%n",
+                statistics.uploads, statistics.uploadedBytes / 1048576., statistics.uploadParts);
+        System.out.printf("Requests          %d (%d failed on purpose, %d transfers damaged on purpose)%n",
+                statistics.requests, statistics.injectedErrors, statistics.corruptedTransfers);
+        System.out.printf("Worker exits      %d before the end of the run%n", unexpectedExits);
+
+        System.out.println("Stage times       average seconds per job");
+        stageTimes.forEach((stage, times) -> System.out.printf("  %-15s %8.2f  (%d jobs)%n",
+                stage, times[1] > 0 ? times[0] / times[1] : 0, (long) times[1]));
+    }
+}
@@ -0,0 +1,130 @@
+package net.celestialdata.plexbotencoder.loadtest;
+
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import net.celestialdata.plexbotencoder.clients.models.Episode;
+import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.models.Show;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A library of synthetic movies and episodes for the fake bot. Every title is backed by a clip that ffmpeg
+// generates from a test pattern and a tone, the clip is made once per length and resolution and kept in
+// the folder so later runs can start right away.
+public class MediaLibrary {
+    private static final long FIRST_TMDB_ID = 10000;
+    private static final long FIRST_TVDB_ID = 20000;
+
+    private final List<Movie> movies = new ArrayList<>();
+    private final List<Episode> episodes = new ArrayList<>();
+    private final Path clip;
+    private final int duration;
+    private final int width;
+    private final int height;
+
+    public MediaLibrary(Path folder, int movieCount, int episodeCount, int duration, String resolution) throws IOException {
+        var size = resolution.split("x");
+        this.duration = duration;
+        this.width = Integer.parseInt(size[0]);
+        this.height = Integer.parseInt(size[1]);
+        this.clip = folder.resolve("clip-" + resolution + "-" + duration + "s.mkv");
+
+        Files.createDirectories(folder);
+        if (!Files.exists(clip)) {
+            generateClip();
+        }
+
+        var show = new Show();
+        show.id = 1;
+        show.tvdbId = FIRST_TVDB_ID;
+        show.name = "Synthetic Show";
+        show.foldername = "Synthetic Show";
+
+        // The file ids are shared by movies and episodes, so every title can be downloaded and uploaded on its own
+        for (int i = 1; i <= movieCount; i++) {
+            var movie = new Movie();
+            movie.id = i;
+            movie.tmdbId = FIRST_TMDB_ID + i;
+            movie.title = "Synthetic Movie " + i;
+            movie.year = "2022";
+            movie.width = width;
+            movie.height = height;
+            movie.resolution = height;
+            movie.duration = duration;
+            movie.codec = "h264";
+            movie.filename = movie.title + ".mkv";
+            movie.filetype = "mkv";
+            movie.folderName = movie.title;
+            movie.isOptimized = false;
+            movies.add(movie);
+        }
+
+        for (int i = 1; i <= episodeCount; i++) {
+            var episode = new Episode();
+            episode.id = movieCount + i;
+            episode.tvdbId = FIRST_TVDB_ID + i;
+            episode.title = "Synthetic Episode " + i;
+            episode.season = 1;
+            episode.number = i;
+            episode.show = show;
+            episode.width = width;
+            episode.height = height;
+            episode.resolution = height;
+            episode.duration = duration;
+            episode.codec = "h264";
+            episode.filename = String.format("S01E%02d.mkv", i);
+            episode.filetype = "mkv";
+            episode.isOptimized = false;
+            episodes.add(episode);
+        }
+    }
+
+    private void generateClip() throws IOException {
+        var partialClip = clip.resolveSibling(clip.getFileName() + ".part.mkv");
+        FFmpeg.atPath()
+                .addInput(UrlInput.fromUrl("testsrc2=size=" + width + "x" + height + ":rate=24:duration=" + duration).setFormat("lavfi"))
+                .addInput(UrlInput.fromUrl("sine=frequency=440:duration=" + duration).setFormat("lavfi"))
+                .addArguments("-c:v", "libx264")
+                .addArguments("-preset", "veryfast")
+                .addArguments("-c:a", "aac")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(UrlOutput.toPath(partialClip))
+                .execute();
+
+        // Only a finished clip gets the final name, so an interrupted run does not leave a broken clip behind
+        Files.move(partialClip, clip);
+    }
+
+    public List<Movie> getMovies() {
+        return Collections.unmodifiableList(movies);
+    }
+
+    public List<Episode> getEpisodes() {
+        return Collections.unmodifiableList(episodes);
+    }
+
+    public Movie getMovie(long tmdbId) {
+        return movies.stream().filter(movie -> movie.tmdbId == tmdbId).findFirst().orElse(null);
+    }
+
+    public Episode getEpisode(long tvdbId) {
+        return episodes.stream().filter(episode -> episode.tvdbId == tvdbId).findFirst().orElse(null);
+    }
+
+    // Every title is served from the same clip
+    public Path getFile(int fileId) {
+        return fileId >= 1 && fileId <= movies.size() + episodes.size() ? clip : null;
+    }
+
+    public int getTitleCount() {
+        return movies.size() + episodes.size();
+    }
+}
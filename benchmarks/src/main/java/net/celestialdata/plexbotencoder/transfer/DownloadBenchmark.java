@@ -0,0 +1,165 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+// Writes a download held in memory to disk with the loops the worker uses, the loop it started out with, and with
+// the copies the JDK offers.
+// The source hands out the data in the small pieces an HTTP connection produces, so the numbers show the cost
+// of the write path and not of the network.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final int NETWORK_READ_SIZE = 16 * 1024;
+
+    private final DecimalFormat decimalFormatter = new DecimalFormat("#0.00");
+    private byte[] data;
+    private Path destination;
+
+    @Param({"67108864"})
+    int fileSize;
+
+    @Param({"262144", "4194304"})
+    int bufferSize;
+
+    // Hands out at most one network read worth of data per call, like the body of an HTTP response
+    private static class NetworkInputStream extends ByteArrayInputStream {
+        NetworkInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, NETWORK_READ_SIZE));
+        }
+    }
+
+    @Setup
+    public void createData() throws IOException {
+        data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        destination = Files.createTempFile("download-benchmark", ".mkv");
+    }
+
+    @TearDown
+    public void deleteData() throws IOException {
+        Files.deleteIfExists(destination);
+    }
+
+    @Setup(Level.Invocation)
+    public void truncateDestination() throws IOException {
+        Files.write(destination, new byte[0]);
+    }
+
+    // The download loop of the first version of the worker, as the baseline. It moves 1 KiB per call and formats the
+    // progress text after every call, the buffer size does not apply to it.
+    @Benchmark
+    public long legacyLoop(Blackhole blackhole) throws IOException {
+        var downloadByteChannel = Channels.newChannel(new NetworkInputStream(data));
+        var downloadOutputStream = new FileOutputStream(destination.toFile(), false).getChannel();
+
+        long downloadProgress = 0;
+        long downloadFileSize = fileSize;
+        while (downloadOutputStream.transferFrom(downloadByteChannel, downloadOutputStream.size(), 1024) > 0) {
+            downloadProgress += 1024;
+            blackhole.consume("downloading file: " + decimalFormatter.format((((double) downloadProgress / downloadFileSize) * 100)) + "%");
+        }
+
+        var size = downloadOutputStream.size();
+        downloadByteChannel.close();
+        downloadOutputStream.close();
+        return size;
+    }
+
+    // The loop that writes downloads which are read as a stream
+    @Benchmark
+    public long mediaDownloader() throws IOException {
+        var downloader = new MediaDownloader();
+        downloader.bufferSize = bufferSize;
+        var state = new DownloadState();
+        state.setTotalBytes(fileSize);
+        state.addPart(new DownloadState.Part(0, fileSize, 0));
+        return downloader.download(new NetworkInputStream(data), destination, state, (downloaded, total) -> {});
+    }
+
+    // The subscriber that writes the downloads of the asynchronous HTTP client
+    @Benchmark
+    public long fileWriteSubscriber() throws Exception {
+        try (var fileChannel = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            var subscriber = new FileWriteSubscriber(fileChannel, new DownloadState.Part(0, fileSize, 0), bufferSize, bytes -> {});
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+
+            for (int offset = 0; offset < fileSize; offset += NETWORK_READ_SIZE) {
+                subscriber.onNext(List.of(ByteBuffer.wrap(data, offset, Math.min(NETWORK_READ_SIZE, fileSize - offset))));
+            }
+
+            subscriber.onComplete();
+            return subscriber.getBody().toCompletableFuture().get();
+        }
+    }
+
+    // A buffered output stream with the same buffer size instead of the direct buffer
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (InputStream source = new NetworkInputStream(data);
+             var output = new BufferedOutputStream(Files.newOutputStream(destination, StandardOpenOption.WRITE), bufferSize)) {
+            return source.transferTo(output);
+        }
+    }
+
+    // Let the file channel pull the data from the stream by itself
+    @Benchmark
+    public long transferFrom() throws IOException {
+        try (var source = Channels.newChannel(new NetworkInputStream(data));
+             var fileChannel = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = fileChannel.transferFrom(source, position, bufferSize)) > 0) {
+                position += transferred;
+            }
+
+            return position;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.celestialdata.plexbotencoder.encoding.VideoSettings;
+import net.celestialdata.plexbotencoder.encoding.backends.EncoderBackend;
+import net.celestialdata.plexbotencoder.encoding.backends.Libx264Backend;
+import net.celestialdata.plexbotencoder.encoding.backends.Libx265Backend;
+import net.celestialdata.plexbotencoder.encoding.backends.SvtAv1Backend;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs a whole job against a stub of the bot on this machine: the source is downloaded with the downloader
+// of the worker, encoded with one of the encoder backends and uploaded again. The source is a synthetic clip
+// made by ffmpeg, so the benchmark needs nothing but an ffmpeg on the PATH.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final int FILE_ID = 1;
+
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private Path workFolder;
+    private Path source;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private MediaDownloader downloader;
+    private TransferClient transferClient;
+    private MediaUploader uploader;
+    private VideoSettings videoSettings;
+
+    @Param({"libx265"})
+    String encoder;
+
+    // Only used by the encoders with x264 and x265 presets, the others use their default preset
+    @Param({"ultrafast"})
+    String preset;
+
+    @Param({"22"})
+    String crf;
+
+    @Param({"1280x720"})
+    String resolution;
+
+    @Param({"10"})
+    int duration;
+
+    @Param({"1"})
+    int downloadConnections;
+
+    // The metrics are not registered anywhere outside of the application
+    private static class NoMetrics extends PipelineMetrics {
+        @Override
+        public void recordDownloadedBytes(long bytes) {
+        }
+
+        @Override
+        public void recordUploadedBytes(long bytes) {
+        }
+    }
+
+    @Setup
+    public void startServer() throws IOException {
+        workFolder = Files.createTempDirectory("pipeline-benchmark");
+        source = workFolder.resolve("source.mkv");
+        FFmpeg.atPath()
+                .addInput(UrlInput.fromUrl("testsrc2=size=" + resolution + ":rate=24:duration=" + duration).setFormat("lavfi"))
+                .addInput(UrlInput.fromUrl("sine=frequency=440:duration=" + duration).setFormat("lavfi"))
+                .addArguments("-c:v", "libx264")
+                .addArguments("-preset", "veryfast")
+                .addArguments("-c:a", "aac")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(UrlOutput.toPath(source))
+                .execute();
+
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v1/movies/download/" + FILE_ID, this::serveDownload);
+        server.createContext("/api/v1/movies/upload", this::receiveUpload);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        // The transfer client reads the credentials of the bot from the configuration
+        System.setProperty("AppSettings.username", "benchmark");
+        System.setProperty("AppSettings.password", "benchmark");
+
+        var metrics = new NoMetrics();
+        transferClient = new TransferClient();
+        transferClient.apiAddress = "http://127.0.0.1:" + server.getAddress().getPort();
+        transferClient.metrics = metrics;
+        transferClient.init();
+
+        downloader = new MediaDownloader();
+        downloader.bufferSize = 4 * 1024 * 1024;
+        downloader.connections = downloadConnections;
+        downloader.minimumPartSize = 1024 * 1024;
+        downloader.transferClient = transferClient;
+        downloader.metrics = metrics;
+
+        uploader = new MediaUploader();
+        uploader.bufferSize = 4 * 1024 * 1024;
+        uploader.connections = 1;
+        uploader.partSize = Long.MAX_VALUE;
+        uploader.transferClient = transferClient;
+        uploader.metrics = metrics;
+
+        var backend = List.<EncoderBackend>of(new Libx265Backend(), new Libx264Backend(), new SvtAv1Backend()).stream()
+                .filter(candidate -> candidate.getName().equals(encoder))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown encoder " + encoder));
+        videoSettings = new VideoSettings(backend, crf, backend.hasX26xPresets() ? preset : backend.getDefaultPreset());
+    }
+
+    @TearDown
+    public void stopServer() throws IOException {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+
+        try (var files = Files.list(workFolder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+
+        Files.delete(workFolder);
+    }
+
+    // Serve the source, answering range requests the same way the bot does
+    private void serveDownload(HttpExchange exchange) throws IOException {
+        var size = Files.size(source);
+        long start = 0;
+        long end = size - 1;
+
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            var bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            end = bounds.length > 1 && !bounds[1].isEmpty() ? Long.parseLong(bounds[1]) : end;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+        try (var body = exchange.getResponseBody(); var channel = Files.newByteChannel(source)) {
+            channel.position(start);
+            var input = Channels.newInputStream(channel);
+            var buffer = new byte[64 * 1024];
+            long remaining = end - start + 1;
+            int read;
+            while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                body.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private void receiveUpload(HttpExchange exchange) throws IOException {
+        try (var body = exchange.getRequestBody()) {
+            uploadedBytes.addAndGet(body.transferTo(OutputStream.nullOutputStream()));
+        }
+
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    @Benchmark
+    public long downloadEncodeUpload() throws IOException, InterruptedException {
+        var downloaded = workFolder.resolve("downloaded.mkv");
+        var encoded = workFolder.resolve("encoded.mkv");
+
+        downloader.download("movie", FILE_ID, downloaded, (bytes, total) -> {});
+
+        videoSettings.apply(FFmpeg.atPath().addInput(UrlInput.fromPath(downloaded)))
+                .addArguments("-c:a", "copy")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(UrlOutput.toPath(encoded))
+                .setProgressListener(progress -> {})
+                .execute();
+
+        uploader.upload("movie", FILE_ID, encoded, (bytes, total) -> {});
+
+        return uploadedBytes.get();
+    }
+}
@@ -0,0 +1,77 @@
+package net.celestialdata.plexbotencoder.utilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Works out the type of the files a job handles, the names cover the common containers, subtitles and
+// files that are not media at all, which have to go through every check of the file type.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTypeBenchmark {
+    private static final String[] FILENAMES = {
+            "The Matrix (1999).mkv",
+            "Blade Runner 2049 (2017) - 2160p.mp4",
+            "Alien (1979).avi",
+            "S01E01 - Pilot.m4v",
+            "S01E01 - Pilot.en.srt",
+            "S02E13 - Finale.wmv",
+            "Metropolis (1927).mpeg",
+            "poster.jpg",
+            "movie.nfo",
+            "The Matrix (1999).torrent"
+    };
+
+    private static final Map<String, FileType> TYPES_BY_EXTENSION = new HashMap<>();
+
+    static {
+        for (FileType fileType : FileType.values()) {
+            if (fileType != FileType.UNKNOWN) {
+                TYPES_BY_EXTENSION.put(fileType.getExtension(), fileType);
+            }
+        }
+    }
+
+    private int index;
+
+    private String nextFilename() {
+        index = (index + 1) % FILENAMES.length;
+        return FILENAMES[index];
+    }
+
+    @Benchmark
+    public FileType determineFiletype() {
+        return FileType.determineFiletype(nextFilename());
+    }
+
+    @Benchmark
+    public boolean isVideo() {
+        return FileType.isVideo(nextFilename());
+    }
+
+    // Look the extension up in a map instead of comparing the end of the name with every extension
+    @Benchmark
+    public FileType extensionLookup() {
+        var filename = nextFilename();
+        var dot = filename.lastIndexOf('.');
+        if (dot < 0) {
+            return FileType.UNKNOWN;
+        }
+
+        return TYPES_BY_EXTENSION.getOrDefault(filename.substring(dot), FileType.UNKNOWN);
+    }
+}
@@ -4,16 +4,41 @@ import com.github.kokorin.jaffree.JaffreeException;
 import com.github.kokorin.jaffree.LogLevel;
 import com.github.kokorin.jaffree.ffmpeg.*;
 import io.quarkus.runtime.Quarkus;
+import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import io.quarkus.scheduler.Scheduled;
+import net.celestialdata.plexbotencoder.clients.MediaCache;
+import net.celestialdata.plexbotencoder.clients.models.ClaimRequest;
 import net.celestialdata.plexbotencoder.clients.models.Episode;
 import net.celestialdata.plexbotencoder.clients.models.HistoryItem;
 import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.models.QueueItem;
 import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
 import net.celestialdata.plexbotencoder.clients.services.*;
+import net.celestialdata.plexbotencoder.encoding.EncodeDecision;
+import net.celestialdata.plexbotencoder.encoding.EncodePlanner;
+import net.celestialdata.plexbotencoder.encoding.MediaProbe;
+import net.celestialdata.plexbotencoder.encoding.PresetSelector;
+import net.celestialdata.plexbotencoder.encoding.SegmentedEncoder;
+import net.celestialdata.plexbotencoder.encoding.StreamSelection;
+import net.celestialdata.plexbotencoder.encoding.VideoSettings;
+import net.celestialdata.plexbotencoder.encoding.backends.EncoderBackends;
+import net.celestialdata.plexbotencoder.jobs.*;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import net.celestialdata.plexbotencoder.storage.StorageReservation;
+import net.celestialdata.plexbotencoder.storage.TempStorage;
+import net.celestialdata.plexbotencoder.transfer.Checksums;
+import net.celestialdata.plexbotencoder.transfer.DownloadState;
+import net.celestialdata.plexbotencoder.transfer.MediaDownloader;
+import net.celestialdata.plexbotencoder.transfer.MediaUploader;
+import net.celestialdata.plexbotencoder.transfer.SourceRelay;
+import net.celestialdata.plexbotencoder.transfer.StreamingSource;
+import net.celestialdata.plexbotencoder.transfer.StreamingUpload;
+import net.celestialdata.plexbotencoder.transfer.TransferClient;
 import net.celestialdata.plexbotencoder.utilities.FileType;
+import net.celestialdata.plexbotencoder.utilities.NamedThreadFactory;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.logging.Logger;
@@ -22,45 +47,138 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.core.Response;
 import java.io.*;
-import java.nio.channels.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DecimalFormat;
-import java.util.Collection;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class Encoder {
-    private boolean isNotEncoding = true;
-    private WorkItem currentWorkItem = new WorkItem();
-    private final DecimalFormat decimalFormatter = new DecimalFormat("#0.00");
+    private final List<JobSlot> jobSlots = new ArrayList<>();
+    private final AtomicBoolean dispatchQueued = new AtomicBoolean();
+    private final AtomicBoolean prefetching = new AtomicBoolean();
+    private final AtomicInteger fetchFailCount = new AtomicInteger();
+    private ExecutorService jobExecutor;
+    private ExecutorService transferExecutor;
+    private volatile ExecutorService dispatchExecutor;
+    private final Deque<PrefetchedJob> prefetchedJobs = new ConcurrentLinkedDeque<>();
+    private final Object pickupSignal = new Object();
+    private Thread jobPickupThread;
+    private volatile boolean shuttingDown = false;
+    private volatile boolean claimSupported = true;
 
     private static final Logger logger = Logger.getLogger(Encoder.class);
 
-    private int failCount = 0;
-
     @ConfigProperty(name = "AppSettings.workerName")
     String workerName;
 
+    @ConfigProperty(name = "AppSettings.maxConcurrentJobs", defaultValue = "1")
+    int maxConcurrentJobs;
+
     @ConfigProperty(name = "AppSettings.crf")
     String crf;
 
-    @ConfigProperty(name = "AppSettings.accelerationHardware")
-    String accelerationHardware;
-
     @ConfigProperty(name = "AppSettings.tempFolder")
     String tempFolder;
 
+    @ConfigProperty(name = "AppSettings.streamingInput", defaultValue = "false")
+    boolean streamingInput;
+
+    @ConfigProperty(name = "AppSettings.streamingSpillSize", defaultValue = "67108864")
+    long streamingSpillSize;
+
+    @ConfigProperty(name = "AppSettings.streamingUpload", defaultValue = "false")
+    boolean streamingUpload;
+
+    @ConfigProperty(name = "AppSettings.segmentedEncoding", defaultValue = "false")
+    boolean segmentedEncoding;
+
+    @ConfigProperty(name = "AppSettings.checkpointEncodes", defaultValue = "false")
+    boolean checkpointEncodes;
+
+    @ConfigProperty(name = "AppSettings.shutdownGracePeriod", defaultValue = "0")
+    int shutdownGracePeriod;
+
+    @ConfigProperty(name = "AppSettings.longPolling", defaultValue = "false")
+    boolean longPolling;
+
+    @ConfigProperty(name = "AppSettings.longPollTimeout", defaultValue = "20")
+    int longPollTimeout;
+
+    @ConfigProperty(name = "AppSettings.maximumPollBackoff", defaultValue = "60")
+    int maximumPollBackoff;
+
+    @ConfigProperty(name = "AppSettings.leaseDuration", defaultValue = "300")
+    int leaseDuration;
+
+    @ConfigProperty(name = "AppSettings.prefetchDepth", defaultValue = "0")
+    int prefetchDepth;
+
+    @ConfigProperty(name = "AppSettings.prefetchDiskBudget", defaultValue = "53687091200")
+    long prefetchDiskBudget;
+
+    @ConfigProperty(name = "AppSettings.distributedEncoding", defaultValue = "false")
+    boolean distributedEncoding;
+
+    @ConfigProperty(name = "AppSettings.distributedMinimumDuration", defaultValue = "3600")
+    int distributedMinimumDuration;
+
+    @ConfigProperty(name = "AppSettings.distributedSegmentDuration", defaultValue = "600")
+    int distributedSegmentDuration;
+
+    @ConfigProperty(name = "AppSettings.verifyChecksums", defaultValue = "true")
+    boolean verifyChecksums;
+
     @Inject
-    @RestClient
-    EpisodeService episodeService;
+    TransferClient transferClient;
 
     @Inject
-    @RestClient
-    MovieService movieService;
+    MediaDownloader mediaDownloader;
+
+    @Inject
+    SourceRelay sourceRelay;
+
+    @Inject
+    MediaUploader mediaUploader;
+
+    @Inject
+    MediaProbe mediaProbe;
+
+    @Inject
+    MediaCache mediaCache;
+
+    @Inject
+    EncodePlanner encodePlanner;
+
+    @Inject
+    PresetSelector presetSelector;
+
+    @Inject
+    EncoderBackends encoderBackends;
+
+    @Inject
+    SegmentedEncoder segmentedEncoder;
+
+    @Inject
+    TempStorage tempStorage;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @Inject
+    ProgressReporter progressReporter;
 
     @Inject
     @RestClient
@@ -74,217 +192,944 @@ public class Encoder {
     @RestClient
     HistoryService historyService;
 
-    @Scheduled(every = "3s", delay = 10, delayUnit = TimeUnit.SECONDS)
+    @Inject
+    @RestClient
+    SegmentService segmentService;
+
+    @Scheduled(every = "1s", delay = 10, delayUnit = TimeUnit.SECONDS, concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
     public void updateProgress() {
-        try {
-            if (!isNotEncoding) {
-                workService.update(currentWorkItem.id, currentWorkItem.progress);
+        var reports = new ArrayList<WorkProgress>();
+
+        for (JobSlot slot : jobSlots) {
+            var workItem = slot.getWorkItem();
+
+            // Keep the on-disk record of a running download current
+            var journal = slot.getJournal();
+            if (journal != null && journal.getStage() == JobJournal.Stage.DOWNLOADING) {
+                journal.trySave();
+            }
+
+            if (slot.isActive() && workItem.id != null) {
+                reports.add(slot.getProgressReport());
             }
-        } catch (WebApplicationException e) {
-            logger.warn("Failed to updated status, server returned a " + e.getResponse().getStatus() + " error code");
         }
+
+        for (PrefetchedJob prefetchedJob : prefetchedJobs) {
+            var journal = prefetchedJob.getJournal();
+            if (journal != null && journal.getStage() == JobJournal.Stage.DOWNLOADING) {
+                journal.trySave();
+            }
+
+            reports.add(prefetchedJob.getProgressReport());
+        }
+
+        // The reporter decides which of these are worth sending, and sends them from its own thread
+        progressReporter.report(reports);
     }
 
-    @Scheduled(every = "1m", delay = 10, delayUnit = TimeUnit.SECONDS)
+    @Scheduled(every = "1m", delay = 10, delayUnit = TimeUnit.SECONDS, concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
     public void fetchWork() {
-        if (isNotEncoding) {
-            var tempFilePath = "";
-            var outputFilePath = "";
-            var itemFileExtension = "";
-
-            // If the fail count is over 20, then exit the application with a failed status
-            // so the service managers can restart it
-            if (failCount == 20) {
-                PlexbotEncoder.setExitCode(1);
-                Quarkus.asyncExit();
-                return;
+        // With long polling the job pickup thread claims the jobs instead
+        if (!longPolling) {
+            dispatchClaims();
+        }
+    }
+
+    // Claim jobs on the dispatch thread, so neither the scheduler nor a job thread waits for the bot. A request made
+    // while an earlier one is still waiting to run is folded into it. A scheduled fetch that comes before the job slots
+    // are started, while the encoders are still being calibrated, is skipped.
+    private void dispatchClaims() {
+        if (shuttingDown || dispatchExecutor == null || !dispatchQueued.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            dispatchExecutor.execute(() -> {
+                dispatchQueued.set(false);
+                claimJobs(null);
+            });
+        } catch (RejectedExecutionException e) {
+            dispatchQueued.set(false);
+        }
+    }
+
+    // Give every free slot a job, preferring jobs that have already been prefetched. The wait time asks the bot to
+    // hold the request until a job is queued. Returns false if the queue ran out or the bot could not be reached.
+    // Only picking the slots and handing them their jobs happens under the lock, the requests to the bot do not.
+    private boolean claimJobs(Integer waitSeconds) {
+        var freeSlots = acquireFreeSlots();
+        if (freeSlots == null) {
+            return false;
+        }
+
+        if (freeSlots.isEmpty()) {
+            prefetchJobs();
+            return true;
+        }
+
+        logger.info("Fetching " + freeSlots.size() + " new job(s)");
+
+        // Fetch a job for every free slot at once
+        List<WorkItem> workItems;
+        try {
+            workItems = metrics.timeQueueClaim(() -> getNextJobs(freeSlots.size(), waitSeconds));
+        } catch (WebApplicationException e) {
+            logger.error("Failed to fetch job, server returned a " + e.getResponse().getStatus() + " error code");
+            recordFetchFailure();
+            freeSlots.forEach(JobSlot::release);
+            return false;
+        } catch (Exception e) {
+            logger.error("Failed to fetch job", e);
+            recordFetchFailure();
+            freeSlots.forEach(JobSlot::release);
+            return false;
+        }
+
+        fetchFailCount.set(0);
+
+        // There is no point in prefetching when the queue could not fill the slots
+        if (startJobs(freeSlots, workItems) < freeSlots.size()) {
+            return false;
+        }
+
+        prefetchJobs();
+        return true;
+    }
+
+    // Acquire the slots that are free and start the prefetched jobs in them. Returns the slots that still need a job,
+    // or null if no jobs should be claimed at all.
+    private synchronized List<JobSlot> acquireFreeSlots() {
+        if (shuttingDown) {
+            return null;
+        }
+
+        // If a slot or the fetching of jobs has failed over 20 times in a row, then exit the application
+        // with a failed status so the service managers can restart it
+        if (fetchFailCount.get() >= 20 || jobSlots.stream().anyMatch(slot -> slot.getFailCount() >= 20)) {
+            PlexbotEncoder.setExitCode(1);
+            Quarkus.asyncExit();
+            return null;
+        }
+
+        var freeSlots = new ArrayList<JobSlot>();
+        for (JobSlot slot : jobSlots) {
+            // Skip slots that are already working on a job
+            if (!slot.tryAcquire()) {
+                continue;
+            }
+
+            // Start a job that has already been prefetched before fetching a new one
+            var prefetchedJob = prefetchedJobs.poll();
+            if (prefetchedJob != null) {
+                var workItem = prefetchedJob.getWorkItem();
+                logger.info("Starting the prefetched " + workItem.mediaType + " " + workItem.mediaId + " in slot " + slot.getIndex());
+
+                slot.setWorkItem(workItem);
+                slot.setJournal(prefetchedJob.getJournal());
+                prefetchedJob.handOver(slot);
+                submitJob(slot, () -> {
+                    // The job continues from whatever part of the source the prefetch has downloaded
+                    prefetchedJob.awaitDownload();
+                    slot.setReservation(prefetchedJob.getReservation());
+                    slot.setProgress(JobStage.LOADING);
+                    runJob(slot);
+                });
+                continue;
+            }
+
+            freeSlots.add(slot);
+        }
+
+        return freeSlots;
+    }
+
+    // Hand the fetched jobs to the acquired slots and release the slots that are left over. An unfinished job of this
+    // worker that another claim started in the meantime is skipped. Returns the number of jobs that were started.
+    private synchronized int startJobs(List<JobSlot> freeSlots, List<WorkItem> workItems) {
+        var started = 0;
+        for (WorkItem workItem : workItems) {
+            if (shuttingDown || started >= freeSlots.size()) {
+                break;
+            }
+
+            if (isWorkItemActive(workItem)) {
+                continue;
+            }
+
+            var slot = freeSlots.get(started++);
+            logger.info("Fetched " + workItem.mediaType + " " + workItem.mediaId + " from the queue for slot " + slot.getIndex());
+
+            // Hand the job over to the slot and start processing it
+            slot.setWorkItem(workItem);
+            slot.setProgress(JobStage.LOADING);
+            submitJob(slot, () -> runJob(slot));
+        }
+
+        // Release the slots the queue did not have a job for
+        for (int i = started; i < freeSlots.size(); i++) {
+            freeSlots.get(i).release();
+        }
+
+        return started;
+    }
+
+    private void submitJob(JobSlot slot, Runnable job) {
+        try {
+            jobExecutor.submit(() -> {
+                job.run();
+                onJobFinished();
+            });
+        } catch (RejectedExecutionException e) {
+            // The worker is shutting down, the job stays with this worker and is resumed after a restart
+            slot.release();
+        }
+    }
+
+    // Move straight on to the next job instead of waiting for the next scheduled fetch
+    private void onJobFinished() {
+        if (longPolling) {
+            synchronized (pickupSignal) {
+                pickupSignal.notifyAll();
             }
+        } else if (prefetchDepth > 0) {
+            dispatchClaims();
+        }
+    }
+
+    // Claims a job as soon as a slot is free. An empty queue is waited on with a long poll, and if the bot
+    // answers right away instead, the next attempt is delayed by a growing, randomized backoff.
+    private void runJobPickup() {
+        long backoffMillis = 0;
 
+        // Give the startup the same head start as the scheduled fetch, so the temp folder is cleaned first
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        while (!shuttingDown) {
             try {
-                logger.info("Fetching a new job");
+                synchronized (pickupSignal) {
+                    while (!shuttingDown && jobSlots.stream().allMatch(JobSlot::isActive)) {
+                        pickupSignal.wait();
+                    }
+                }
+
+                var claimStart = System.nanoTime();
+                if (claimJobs(longPollTimeout)) {
+                    backoffMillis = 0;
+                    continue;
+                }
 
-                // Fetch the next job to work on
+                // The bot held the request until the long poll timed out, so ask again right away
+                var claimMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - claimStart);
+                if (claimMillis >= longPollTimeout * 1000L / 2) {
+                    backoffMillis = 0;
+                    continue;
+                }
+
+                backoffMillis = backoffMillis == 0 ? 1000 : Math.min(backoffMillis * 2, maximumPollBackoff * 1000L);
+                Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("The job pickup failed", e);
+            }
+        }
+    }
+
+    // Claim jobs ahead of time and download their sources while the job slots are busy, as long as
+    // the prefetched sources stay within the disk budget. Only one claim prefetches at a time, so the depth is never
+    // overshot, and a claim that finds another one prefetching leaves it to that one.
+    private void prefetchJobs() {
+        if (!prefetching.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            while (!shuttingDown && prefetchedJobs.size() < prefetchDepth && getPrefetchedBytes() < prefetchDiskBudget) {
+                List<WorkItem> workItems;
                 try {
-                    currentWorkItem = getNextJob();
-                } catch (WebApplicationException e) {
-                    logger.error("Failed to fetch job, server returned a " + e.getResponse().getStatus() + " error code");
-                    failCount += 1;
-                    isNotEncoding = true;
+                    workItems = metrics.timeQueueClaim(() -> getNextJobs(1, null));
+                } catch (Exception e) {
+                    logger.warn("Failed to fetch a job to prefetch", e);
                     return;
                 }
 
-                // Ensure that there is actually a job to work on
-                if (currentWorkItem == null) {
-                    isNotEncoding = true;
+                if (workItems.isEmpty() || !addPrefetchedJob(workItems.get(0))) {
                     return;
                 }
+            }
+        } finally {
+            prefetching.set(false);
+        }
+    }
 
-                logger.info("Fetched " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " from the queue");
+    private synchronized boolean addPrefetchedJob(WorkItem workItem) {
+        if (shuttingDown || isWorkItemActive(workItem)) {
+            return false;
+        }
 
-                // Mark that the encoding process has started
-                isNotEncoding = false;
-                currentWorkItem.progress = "loading media";
+        logger.info("Prefetching " + workItem.mediaType + " " + workItem.mediaId);
+        var prefetchedJob = new PrefetchedJob(workItem);
+        prefetchedJob.setProgress(JobStage.WAITING);
+        prefetchedJobs.add(prefetchedJob);
+        prefetchedJob.setDownload(CompletableFuture.runAsync(() -> prefetchSource(prefetchedJob), transferExecutor));
+        return true;
+    }
 
-                // Fetch the media file based on the type contained in the queue item
-                var mediaItem = currentWorkItem.mediaType.equals("movie") ?
-                        movieService.get(currentWorkItem.mediaId) : episodeService.get(currentWorkItem.mediaId);
+    private long getPrefetchedBytes() {
+        return prefetchedJobs.stream().mapToLong(PrefetchedJob::getSourceSize).sum();
+    }
 
-                // Use the right API to get the download connection of the file based on its type
-                Response downloadResponse = null;
-                if (mediaItem instanceof Movie) {
-                    downloadResponse = movieService.downloadFile(((Movie) mediaItem).id);
-                    itemFileExtension = ((Movie) mediaItem).filetype;
-                } else if (mediaItem != null) {
-                    downloadResponse = episodeService.downloadFile(((Episode) mediaItem).id);
-                    itemFileExtension = ((Episode) mediaItem).filetype;
-                }
+    private void prefetchSource(PrefetchedJob prefetchedJob) {
+        var workItem = prefetchedJob.getWorkItem();
 
-                // Ensure it was able to get a download connection otherwise cancel
-                if (downloadResponse == null) {
-                    workService.delete(currentWorkItem.id);
-                    addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Failed - unable to initiate download");
-                    failCount += 1;
-                    isNotEncoding = true;
-                    return;
-                }
+        try {
+            var mediaItem = mediaCache.get(workItem.mediaType, workItem.mediaId);
+            if (mediaItem == null) {
+                return;
+            }
+
+            // A segment reads only its own part of the source while it is encoded, so there is nothing to download ahead
+            if (workItem.segmentIndex != null) {
+                return;
+            }
+
+            int fileId = mediaItem instanceof Movie ? ((Movie) mediaItem).id : ((Episode) mediaItem).id;
+            var itemFileExtension = mediaItem instanceof Movie ? ((Movie) mediaItem).filetype : ((Episode) mediaItem).filetype;
+            var journal = loadJournal(workItem);
+
+            // Only prefetch when there is room right away, otherwise the job waits for its space once it starts
+            var reservation = reserveStorage(workItem, mediaItem, fileId, journal, false);
+            if (reservation == null) {
+                logger.info("Not prefetching the source of " + workItem.mediaType + " " + workItem.mediaId + ", the temp folders are full");
+                return;
+            }
+            prefetchedJob.setReservation(reservation);
 
-                // Build the destination path for this file
-                tempFilePath = tempFolder + currentWorkItem.mediaId + "-old." + itemFileExtension;
+            if (journal == null) {
+                journal = createJournal(workItem, fileId,
+                        reservation.getSourceFolder().resolve(getJobName(workItem) + "-old." + itemFileExtension).toString(),
+                        reservation.getOutputFolder().resolve(getJobName(workItem) + ".mkv").toString());
+            }
+            reservation.setFiles(Paths.get(journal.getSourceFilePath()), Paths.get(journal.getOutputFilePath()));
+            reservation.setSourceDownload(journal.getDownloadState());
+            prefetchedJob.setJournal(journal);
 
+            if (journal.getStage() == JobJournal.Stage.DOWNLOADING) {
+                var downloadStart = System.nanoTime();
+                mediaDownloader.download(workItem.mediaType, fileId, Paths.get(journal.getSourceFilePath()), journal.getDownloadState(),
+                        (bytesDownloaded, totalBytes) -> prefetchedJob.setByteProgress(JobStage.PREFETCHING, bytesDownloaded, totalBytes));
+
+                journal.setStage(JobJournal.Stage.DOWNLOADED);
+                journal.save();
+                metrics.recordStage("download", downloadStart);
+            }
+
+            prefetchedJob.setProgress(JobStage.WAITING);
+            logger.info("Prefetched the source of " + workItem.mediaType + " " + workItem.mediaId);
+        } catch (Exception e) {
+            // The job downloads whatever is missing itself once it starts
+            if (!shuttingDown) {
+                logger.warn("Failed to prefetch " + workItem.mediaType + " " + workItem.mediaId + ", it will be downloaded when the job starts", e);
+            }
+        }
+    }
+
+    void runJob(JobSlot slot) {
+        var currentWorkItem = slot.getWorkItem();
+        StreamingSource streamingSource = null;
+        StreamingUpload streamingUploader = null;
+
+        try {
+            // Fetch the media file based on the type contained in the queue item
+            var mediaItem = mediaCache.get(currentWorkItem.mediaType, currentWorkItem.mediaId);
+
+            // Ensure the media item exists otherwise cancel
+            if (mediaItem == null) {
+                workService.delete(currentWorkItem.id);
+                abandonSegments(currentWorkItem);
+                addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Failed - unable to initiate download");
+                recordFailure(slot);
+                slot.release();
+                return;
+            }
+
+            // The file id is used by the download and upload endpoints
+            int fileId = mediaItem instanceof Movie ? ((Movie) mediaItem).id : ((Episode) mediaItem).id;
+            var itemFileExtension = mediaItem instanceof Movie ? ((Movie) mediaItem).filetype : ((Episode) mediaItem).filetype;
+
+            // Pick up where an earlier run or a prefetch of this job left off
+            var isSegment = currentWorkItem.segmentIndex != null;
+            var journal = loadJournal(currentWorkItem);
+
+            // Reserve the temp space of the job before anything is downloaded, a prefetched job already has its space
+            var reservation = slot.getReservation();
+            if (reservation == null) {
+                slot.setProgress(JobStage.WAITING_FOR_SPACE);
+                reservation = reserveStorage(currentWorkItem, mediaItem, fileId, journal, true);
+                slot.setReservation(reservation);
+                slot.setProgress(JobStage.LOADING);
+            }
+
+            // Build the paths of the source and output files for this job, a segment job only outputs its own segment.
+            // The files of a resumed job stay in the folders the earlier run put them in.
+            if (journal != null) {
+                slot.setTempFilePath(journal.getSourceFilePath());
+                slot.setOutputFilePath(journal.getOutputFilePath());
+            } else {
+                slot.setTempFilePath(reservation.getSourceFolder().resolve(getJobName(currentWorkItem) + "-old." + itemFileExtension).toString());
+                slot.setOutputFilePath(reservation.getOutputFolder().resolve(getJobName(currentWorkItem) + ".mkv").toString());
+            }
+            var tempFilePath = slot.getTempFilePath();
+            var outputFilePath = slot.getOutputFilePath();
+            reservation.setFiles(Paths.get(tempFilePath), Paths.get(outputFilePath));
+
+            // Start a new journal unless the job is being resumed
+            if (journal != null) {
+                logger.info("Resuming " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " from the " +
+                        journal.getStage().name().toLowerCase() + " stage");
+            } else if (!streamingInput || isSegment) {
+                // A segment keeps a journal so an encoded segment is still uploaded after a restart
+                journal = createJournal(currentWorkItem, fileId, tempFilePath, outputFilePath);
+            }
+            slot.setJournal(journal);
+
+            // A streamed source is written from start to end, so its file length tells how much has been written
+            if (journal != null) {
+                reservation.setSourceDownload(journal.getDownloadState());
+            }
+
+            MediaDownloader.DownloadListener downloadListener = (bytesDownloaded, totalBytes) ->
+                    slot.setByteProgress(JobStage.DOWNLOADING, bytesDownloaded, totalBytes);
+
+            long downloadFileSize;
+            var downloadChecksum = Checksums.UNKNOWN;
+            var downloadStart = System.nanoTime();
+            if (isSegment) {
+                // ffmpeg reads only the range of the segment from the bot, the source is never stored on this worker
+                downloadFileSize = -1;
+            } else if (journal != null && journal.getStage() != JobJournal.Stage.DOWNLOADING) {
+                // The source has already been downloaded by an earlier run
+                downloadFileSize = journal.getDownloadState().getTotalBytes();
+            } else if (journal != null) {
                 logger.info("Downloading " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId);
+                downloadFileSize = mediaDownloader.download(currentWorkItem.mediaType, fileId, Paths.get(tempFilePath),
+                        journal.getDownloadState(), downloadListener);
 
-                // Create the input and output streams
-                ReadableByteChannel downloadByteChannel = Channels.newChannel((InputStream) downloadResponse.getEntity());
-                FileChannel downloadOutputStream = new FileOutputStream(tempFilePath, false).getChannel();
+                journal.setStage(JobJournal.Stage.DOWNLOADED);
+                journal.save();
+                metrics.recordStage("download", downloadStart);
+            } else {
+                // When streaming is enabled, check if ffmpeg can read the source straight from the download
+                var downloadResponse = transferClient.openDownload(currentWorkItem.mediaType, fileId);
+                downloadFileSize = downloadResponse.headers().firstValueAsLong("Content-Length").orElse(-1);
+                downloadChecksum = Checksums.fromHeaders(downloadResponse.headers());
+                streamingSource = StreamingSource.open(metrics.countDownload(downloadResponse.body()), Paths.get(tempFilePath),
+                        itemFileExtension, streamingSpillSize);
 
-                // Download the file
-                long downloadProgress = 0;
-                long downloadFileSize = Long.parseLong(downloadResponse.getHeaderString("Content-Length"));
-                while (downloadOutputStream.transferFrom(downloadByteChannel, downloadOutputStream.size(), 1024) > 0) {
-                    downloadProgress += 1024;
-                    currentWorkItem.progress = "downloading file: " + decimalFormatter.format((((double) downloadProgress / downloadFileSize) * 100)) + "%";
-                }
+                if (streamingSource.isStreamable()) {
+                    logger.info("Streaming " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " into the encoder");
+                } else {
+                    logger.info("The source of " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId +
+                            " requires seeking, falling back to a staged download");
 
-                // Close the data streams
-                downloadByteChannel.close();
-                downloadOutputStream.close();
+                    // Continue the download after the bytes that were already spilled to disk. The stream has been used up,
+                    // so a damaged download is downloaded once more on its own.
+                    var downloadState = new DownloadState();
+                    downloadState.setTotalBytes(downloadFileSize);
+                    downloadState.setExpectedChecksum(downloadChecksum);
+                    downloadState.addPart(new DownloadState.Part(0, downloadFileSize, streamingSource.getSpilledBytes(),
+                            streamingSource.getSpilledChecksum()));
+                    mediaDownloader.download(streamingSource.getRemainingStream(), Paths.get(tempFilePath), downloadState, downloadListener);
+                    if (!mediaDownloader.isIntact(currentWorkItem.mediaType, fileId, downloadState)) {
+                        logger.warn("The checksum of " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId +
+                                " does not match the one sent by the bot, downloading it again");
+                        mediaDownloader.download(currentWorkItem.mediaType, fileId, Paths.get(tempFilePath), downloadListener);
+                    }
+                    metrics.recordStage("download", downloadStart);
+                }
+            }
 
+            if (!isSegment && (streamingSource == null || !streamingSource.isStreamable())) {
                 // Show that the download has been completed
-                currentWorkItem.progress = "gathering information";
+                slot.setProgress(JobStage.PROBING);
                 logger.info("Download finished, gathering file information");
+            }
 
-                // Generate the output filepath
-                outputFilePath = tempFolder + currentWorkItem.mediaId + ".mkv";
+            // Determine which encoder to use
+            var encoderBackend = encoderBackends.getBackend();
 
-                // Determine which encoder to use
-                var encoder = "libx265";
-                if (SystemUtils.IS_OS_WINDOWS && accelerationHardware.equalsIgnoreCase("nvidia")) {
-                    encoder = "hevc_nvenc";
-                } else if (SystemUtils.IS_OS_WINDOWS && accelerationHardware.equalsIgnoreCase("amd")) {
-                    encoder = "hevc_amf";
+            // Pick a faster x265 preset when the queue is long, and a slower one when there is time to spare
+            var width = mediaItem instanceof Movie ? ((Movie) mediaItem).width : ((Episode) mediaItem).width;
+            var height = mediaItem instanceof Movie ? ((Movie) mediaItem).height : ((Episode) mediaItem).height;
+            var preset = encoderBackend.getDefaultPreset();
+            if (encoderBackend.hasX26xPresets()) {
+                var titleDuration = mediaItem instanceof Movie ? ((Movie) mediaItem).duration : ((Episode) mediaItem).duration;
+                long jobSeconds = titleDuration != null ? titleDuration : 0;
+                if (isSegment) {
+                    jobSeconds = (currentWorkItem.segmentEnd != null ? currentWorkItem.segmentEnd / 1000 : jobSeconds) -
+                            currentWorkItem.segmentStart / 1000;
                 }
 
-                logger.info("Encoding " + tempFilePath + " into " + outputFilePath);
+                preset = presetSelector.select(preset, jobSeconds, width, height);
+            }
+
+            // An encode that continues from its checkpoints keeps the preset it was started with
+            if (journal != null && journal.getPreset() != null) {
+                preset = journal.getPreset();
+            }
+            var videoSettings = new VideoSettings(encoderBackend, crf, preset);
+
+            // Check whether the source is worth encoding at all, segments and streamed sources are always encoded
+            var encodeFinished = journal != null && journal.getStage() == JobJournal.Stage.ENCODED && Files.exists(Paths.get(outputFilePath));
+            var encodeDecision = EncodeDecision.ENCODE;
+            if (!encodeFinished && !isSegment && (streamingSource == null || !streamingSource.isStreamable())) {
+                var analyzeStart = System.nanoTime();
+                encodeDecision = encodePlanner.decide(Paths.get(tempFilePath),
+                        mediaItem instanceof Movie ? ((Movie) mediaItem).codec : ((Episode) mediaItem).codec, videoSettings);
+                metrics.recordStage("analyze", analyzeStart);
+            }
+
+            if (encodeDecision == EncodeDecision.SKIP) {
+                logger.info("Skipping " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + ", the source is already efficient");
+                deleteWorkFiles(slot);
+                workService.delete(currentWorkItem.id);
+                addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Skipped - source is already efficient");
 
-                // Ensure that we catch errors with the encoding process itself
+                slot.recordSuccess();
+                metrics.recordJobCompleted();
+                slot.release();
+                return;
+            }
+
+            // Skip the encoding if an earlier run already finished it
+            if (encodeFinished) {
+                logger.info("Using the encoded file left behind by an earlier run: " + outputFilePath);
+            } else {
+                logger.info("Encoding " + (streamingSource != null && streamingSource.isStreamable() ? "download stream" :
+                        isSegment ? "a range of the source on the bot" : tempFilePath) + " into " + outputFilePath);
+
+                // Ensure that we catch errors with the encoding process itself. The duration of the video encoded by this
+                // run is kept for the preset speed, it stays 0 when it is not known.
+                var encodeStart = System.nanoTime();
+                long encodedMillis = 0;
                 try {
-                    // Get the media duration
-                    final AtomicLong duration = new AtomicLong();
-                    FFmpeg.atPath()
-                            .addInput(UrlInput.fromUrl(tempFilePath))
-                            .setOverwriteOutput(true)
-                            .addOutput(new NullOutput())
-                            .setLogLevel(LogLevel.ERROR)
-                            .setProgressListener(progress -> duration.set(progress.getTimeMillis()))
-                            .execute();
-
-                    // Build the encoding process
-                    FFmpeg.atPath()
-                            .addInput(UrlInput.fromUrl(tempFilePath))
-                            .addArguments("-c:v", encoder)
-                            .addArguments("-crf", crf)
-                            .addArguments("-preset", "medium")
-                            .addArguments("-c:a", "copy")
-                            .addArguments("-c:s", "copy")
-                            .setOverwriteOutput(true)
-                            .setLogLevel(LogLevel.ERROR)
-                            .addOutput(UrlOutput.toUrl(outputFilePath))
-                            .setProgressListener(fFmpegProgress -> currentWorkItem.progress =
-                                    decimalFormatter.format(100. * fFmpegProgress.getTimeMillis() / duration.get()) + "%")
-                            .execute();
-                } catch (JaffreeException e) {
+                    // When streaming the upload, the output is sent to the server while ffmpeg is still writing it
+                    Output encoderOutput = UrlOutput.toUrl(outputFilePath);
+                    if (streamingUpload && !isSegment) {
+                        logger.info("Uploading the output of " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " while encoding");
+                        streamingUploader = StreamingUpload.start(transferClient, currentWorkItem.mediaType, fileId, metrics::recordUploadedBytes);
+                        encoderOutput = PipeOutput.pumpTo(streamingUploader.getEncoderOutput(), 1024 * 1024).setFormat("matroska");
+                    }
+
+                    if (streamingSource != null && streamingSource.isStreamable()) {
+                        // The source can not be probed ahead of time while streaming, so the progress
+                        // is based on how much of the download ffmpeg has consumed
+                        final var source = streamingSource;
+                        encode(PipeInput.pumpFrom(source.openEncoderStream(), 1024 * 1024), videoSettings, encoderOutput,
+                                encodeProgressListener(slot, fFmpegProgress -> slot.setByteProgress(
+                                        JobStage.ENCODING, source.getBytesRead(), downloadFileSize)));
+                        verifyStreamedSource(currentWorkItem, source, downloadFileSize, downloadChecksum);
+                    } else if (isSegment) {
+                        // Only the video of the segment is encoded, the audio and subtitles are added when the segments are joined.
+                        // The source is not on this worker to probe, the last segment runs until the end of the title.
+                        logger.info("Encoding segment " + (currentWorkItem.segmentIndex + 1) + " of " + currentWorkItem.segmentCount +
+                                " of " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId);
+                        var titleDuration = mediaItem instanceof Movie ? ((Movie) mediaItem).duration : ((Episode) mediaItem).duration;
+                        var segmentEnd = currentWorkItem.segmentEnd != null ? currentWorkItem.segmentEnd :
+                                titleDuration != null ? titleDuration * 1000L : currentWorkItem.segmentStart;
+                        var segmentLength = Math.max(0, segmentEnd - currentWorkItem.segmentStart);
+                        segmentedEncoder.encodeRange(UrlInput.fromUrl(sourceRelay.getUrl(currentWorkItem.mediaType, fileId)),
+                                currentWorkItem.segmentStart, currentWorkItem.segmentEnd, videoSettings, encoderOutput,
+                                encodeProgressListener(slot, fFmpegProgress -> slot.setTimeProgress(
+                                        JobStage.ENCODING, fFmpegProgress.getTimeMillis(), segmentLength)));
+                        encodedMillis = segmentLength;
+                    } else {
+                        // Get the media duration
+                        var probeStart = System.nanoTime();
+                        var duration = mediaProbe.getDuration(currentWorkItem.mediaType, currentWorkItem.mediaId, Paths.get(tempFilePath),
+                                mediaItem instanceof Movie ? ((Movie) mediaItem).duration : ((Episode) mediaItem).duration);
+                        metrics.recordStage("probe", probeStart);
+                        encodeStart = System.nanoTime();
+
+                        if (encodeDecision == EncodeDecision.REMUX) {
+                            // The video is already efficient, so only the container is changed
+                            logger.info("Remuxing " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " without encoding it");
+                            encodePlanner.remux(Paths.get(tempFilePath), encoderOutput,
+                                    fFmpegProgress -> slot.setTimeProgress(JobStage.ENCODING, fFmpegProgress.getTimeMillis(), duration));
+                        } else if (segmentedEncoding || checkpointEncodes) {
+                            // Encode the source in keyframe aligned segments, with several ffmpeg processes at the same time
+                            // for segmented encoding. A restarted worker continues after the segments that were finished.
+                            // Only the segments encoded by this run count towards its speed
+                            var continued = journal != null && journal.getPreset() != null;
+                            if (journal != null && !continued) {
+                                journal.setPreset(videoSettings.getPreset());
+                                journal.save();
+                            }
+
+                            segmentedEncoder.encode(Paths.get(tempFilePath), getSegmentFolder(outputFilePath, currentWorkItem.mediaId),
+                                    videoSettings, encoderOutput, segmentedEncoding,
+                                    segmentMillis -> slot.setTimeProgress(JobStage.ENCODING, segmentMillis, duration));
+                            encodedMillis = continued ? 0 : duration;
+                        } else {
+                            encode(UrlInput.fromUrl(tempFilePath), videoSettings, encoderOutput,
+                                    encodeProgressListener(slot, fFmpegProgress -> slot.setTimeProgress(
+                                            JobStage.ENCODING, fFmpegProgress.getTimeMillis(), duration)));
+                            encodedMillis = duration;
+                        }
+                    }
+                } catch (JaffreeException | IOException e) {
+                    // Leave everything in place so the job can be resumed after a restart
+                    if (shuttingDown) {
+                        logger.info("Encoding of " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " was stopped by the shutdown");
+                        slot.release();
+                        return;
+                    }
+
                     workService.delete(currentWorkItem.id);
+                    abandonSegments(currentWorkItem);
                     addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Failed - encoding failure: " + e.getCause());
 
                     // Attempt to delete work files
-                    try {
-                        Files.deleteIfExists(Paths.get(outputFilePath));
-                        Files.deleteIfExists(Paths.get(tempFilePath));
-                    } catch (Exception e2) {
-                        logger.error(e2);
-                    }
+                    deleteWorkFiles(slot);
 
-                    failCount += 1;
-                    isNotEncoding = true;
+                    recordFailure(slot);
+                    slot.release();
                     return;
                 }
 
+                metrics.recordStage(encodeDecision == EncodeDecision.REMUX ? "remux" : "encode", encodeStart);
+                if (encodeDecision == EncodeDecision.ENCODE) {
+                    presetSelector.recordSpeed(videoSettings.getPreset(), width, height, encodedMillis, System.nanoTime() - encodeStart);
+                }
                 logger.info("Finished encoding " + outputFilePath);
-                logger.info("Uploading " + outputFilePath);
 
-                // Upload the file
-                currentWorkItem.progress = "uploading";
-                if (mediaItem instanceof Movie) {
-                    movieService.uploadFile(((Movie) mediaItem).id, new FileInputStream(outputFilePath));
-                } else {
-                    episodeService.uploadFile(((Episode) mediaItem).id, new FileInputStream(outputFilePath));
+                // Remember that the encode is done so a restart can go straight to the upload
+                if (journal != null && streamingUploader == null) {
+                    journal.setStage(JobJournal.Stage.ENCODED);
+                    journal.save();
                 }
+            }
 
-                // Update the progress of the encoding
-                currentWorkItem.progress = "cleaning up";
-                logger.info("Upload finished");
+            logger.info("Uploading " + outputFilePath);
 
-                // Delete both files from the temp folder
-                try {
-                    Files.deleteIfExists(Paths.get(outputFilePath));
-                    Files.deleteIfExists(Paths.get(tempFilePath));
-                } catch (IOException e) {
-                    logger.warn("There was an error deleting one of the temporary files. Please make sure the work folder is writable.");
+            // Upload the file, or wait for the server to accept the streamed output. A segment is uploaded on its own
+            // and only the worker that finishes the last segment of a title uploads the whole title.
+            slot.setProgress(JobStage.UPLOADING);
+            var uploadStart = System.nanoTime();
+            var titleCompleted = true;
+            if (streamingUploader != null) {
+                // The server has stored the output by the time it reports its checksum, so a damaged upload fails the job
+                var received = streamingUploader.finish();
+                if (verifyChecksums && received != Checksums.UNKNOWN && received != streamingUploader.getChecksum()) {
+                    metrics.recordChecksumMismatch("upload");
+                    throw new IOException("The checksum of the streamed upload of " + currentWorkItem.mediaType + " " +
+                            currentWorkItem.mediaId + " does not match the one reported by the bot");
                 }
+            } else if (isSegment) {
+                titleCompleted = finishSegment(slot, currentWorkItem, fileId);
+            } else {
+                mediaUploader.upload(currentWorkItem.mediaType, fileId, Paths.get(outputFilePath), uploadListener(slot));
+            }
+            metrics.recordStage("upload", uploadStart);
 
-                // Delete the current work item
-                workService.delete(currentWorkItem.id);
+            // Update the progress of the encoding
+            slot.setProgress(JobStage.CLEANING_UP);
+            logger.info("Upload finished");
+
+            // Delete both files and the journal from the temp folder
+            try {
+                Files.deleteIfExists(Paths.get(outputFilePath));
+                Files.deleteIfExists(Paths.get(tempFilePath));
+            } catch (IOException e) {
+                logger.warn("There was an error deleting one of the temporary files. Please make sure the work folder is writable.");
+            }
+
+            if (journal != null) {
+                journal.delete();
+            }
+
+            // The media file has been replaced so its cached information is no longer valid
+            if (titleCompleted) {
+                mediaProbe.invalidate(currentWorkItem.mediaType, currentWorkItem.mediaId);
+                mediaCache.invalidate(currentWorkItem.mediaType, currentWorkItem.mediaId);
+            }
+
+            // Delete the current work item
+            workService.delete(currentWorkItem.id);
+            if (titleCompleted) {
                 addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Completed");
+            }
 
-                // Mark that the encoding has been finished
-                failCount = 0;
-                isNotEncoding = true;
-                logger.info("Job completed");
-            } catch (Exception e1) {
-                // Update the work item with the error state and end the encoding
+            // Mark that the encoding has been finished
+            slot.recordSuccess();
+            metrics.recordJobCompleted();
+            slot.release();
+            logger.info("Job completed");
+        } catch (Exception e1) {
+            // Leave everything in place so the job can be resumed after a restart
+            if (shuttingDown) {
+                logger.info("Job for " + currentWorkItem.mediaType + " " + currentWorkItem.mediaId + " was interrupted by the shutdown");
+                slot.release();
+                return;
+            }
+
+            // Update the work item with the error state and end the encoding
+            try {
                 if (currentWorkItem.id != null) {
                     workService.delete(currentWorkItem.id);
                 }
 
+                abandonSegments(currentWorkItem);
+
                 if (currentWorkItem.mediaId != null && currentWorkItem.mediaType != null) {
                     addHistoryItem(currentWorkItem.mediaId, currentWorkItem.mediaType, "Failed - unknown exception: " + e1.getCause());
                 }
+            } catch (Exception e2) {
+                logger.error(e2);
+            }
+
+            // Attempt to delete work files
+            deleteWorkFiles(slot);
+
+            // Mark that the slot is no longer encoding
+            recordFailure(slot);
+            slot.release();
 
-                // Attempt to delete work files
+            // Log the error
+            logger.error("Job failed to run", e1);
+        } finally {
+            // A streamed upload that the server has not accepted is cancelled however the job ended, otherwise the
+            // request keeps waiting for the rest of the output
+            if (streamingUploader != null) {
+                streamingUploader.abort();
+            }
+
+            // Make sure the download connection is closed when the source was streamed
+            if (streamingSource != null) {
                 try {
-                    Files.deleteIfExists(Paths.get(outputFilePath));
-                    Files.deleteIfExists(Paths.get(tempFilePath));
-                } catch (Exception e2) {
-                    logger.error(e2);
+                    streamingSource.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close the download stream", e);
                 }
+            }
+        }
+    }
 
-                // Mark that it is not encoding
-                failCount += 1;
-                isNotEncoding = true;
+    // A streamed source never reaches the disk, so it is checked as ffmpeg reads it and a damaged source fails the encode
+    // before its output is uploaded. A source of unknown size, or one that ffmpeg stopped reading early, is not checked.
+    private void verifyStreamedSource(WorkItem workItem, StreamingSource source, long totalBytes, long expectedChecksum) throws IOException {
+        if (!verifyChecksums || expectedChecksum == Checksums.UNKNOWN) {
+            return;
+        }
+
+        if (totalBytes < 0 || source.getBytesRead() != totalBytes) {
+            logger.debug("ffmpeg did not read the whole streamed source of " + workItem.mediaType + " " + workItem.mediaId + ", it can not be verified");
+            return;
+        }
+
+        if (source.getChecksum() != expectedChecksum) {
+            metrics.recordChecksumMismatch("download");
+            throw new IOException("The checksum of the streamed source of " + workItem.mediaType + " " + workItem.mediaId +
+                    " does not match the one sent by the bot");
+        }
+
+        logger.debug("Verified the checksum " + Checksums.describe(expectedChecksum).orElse("") + " of the streamed source of " +
+                workItem.mediaType + " " + workItem.mediaId);
+    }
 
-                // Log the error
-                logger.error("Job failed to run", e1);
+    // A segment job only works on its own segment, so its files are named after it
+    private String getJobName(WorkItem workItem) {
+        return workItem.segmentIndex != null ? workItem.mediaId + "-segment-" + workItem.segmentIndex : String.valueOf(workItem.mediaId);
+    }
+
+    private JobJournal loadJournal(WorkItem workItem) {
+        return JobJournal.load(tempFolder, workItem.mediaType, workItem.mediaId, workItem.segmentIndex)
+                .filter(existing -> existing.getWorkItemId().equals(workItem.id))
+                .orElse(null);
+    }
+
+    private JobJournal createJournal(WorkItem workItem, int fileId, String tempFilePath, String outputFilePath) throws IOException {
+        var journal = JobJournal.create(tempFolder, workItem.id, workItem.mediaType, workItem.mediaId, workItem.segmentIndex, fileId);
+        journal.setSourceFilePath(tempFilePath);
+        journal.setOutputFilePath(outputFilePath);
+        journal.save();
+        return journal;
+    }
+
+    // Reserve the temp space of a job. A job that an earlier run or a prefetch started keeps its files where they
+    // are, a new job is given folders for its source and output. Without waiting, null is returned when there is
+    // no room right now.
+    private StorageReservation reserveStorage(WorkItem workItem, Object mediaItem, int fileId, JobJournal journal, boolean wait)
+            throws IOException, InterruptedException {
+        var isSegment = workItem.segmentIndex != null;
+        if (journal != null && !isSegment) {
+            var sourceBytes = Math.max(0, journal.getDownloadState().getTotalBytes());
+            return tempStorage.reserveExisting(Paths.get(journal.getSourceFilePath()), Paths.get(journal.getOutputFilePath()),
+                    sourceBytes, getOutputSize(workItem, mediaItem, sourceBytes));
+        }
+
+        // Without a size from the bot only the free space that is always kept is checked
+        long titleBytes = 0;
+        try {
+            titleBytes = Math.max(0, transferClient.getDownloadSize(workItem.mediaType, fileId));
+        } catch (IOException e) {
+            logger.debug("Failed to get the size of " + workItem.mediaType + " " + workItem.mediaId + " ahead of the download", e);
+        }
+
+        // A segment never stores the source, its size only tells how large the encoded segment gets
+        var sourceBytes = isSegment ? 0 : titleBytes;
+        var outputBytes = getOutputSize(workItem, mediaItem, titleBytes);
+        if (journal != null) {
+            return tempStorage.reserveExisting(Paths.get(journal.getSourceFilePath()), Paths.get(journal.getOutputFilePath()), 0, outputBytes);
+        }
+
+        return wait ? tempStorage.reserve(sourceBytes, outputBytes) : tempStorage.tryReserve(sourceBytes, outputBytes).orElse(null);
+    }
+
+    // Estimate the space taken up by the output of a job. A streamed upload never writes the output to disk, segmented
+    // encoding keeps the encoded segments until they are joined, and a segment job only outputs its part of the title.
+    private long getOutputSize(WorkItem workItem, Object mediaItem, long sourceBytes) {
+        if (streamingUpload && workItem.segmentIndex == null) {
+            return 0;
+        }
+
+        var outputBytes = tempStorage.estimateOutputSize(sourceBytes);
+        if (workItem.segmentIndex == null) {
+            return segmentedEncoding || checkpointEncodes ? outputBytes * 2 : outputBytes;
+        }
+
+        var titleDuration = mediaItem instanceof Movie ? ((Movie) mediaItem).duration : ((Episode) mediaItem).duration;
+        if (titleDuration == null || titleDuration <= 0) {
+            return outputBytes;
+        }
+
+        var titleMillis = titleDuration * 1000L;
+        var segmentEnd = workItem.segmentEnd != null ? Math.min(workItem.segmentEnd, titleMillis) : titleMillis;
+        return outputBytes * Math.max(0, segmentEnd - workItem.segmentStart) / titleMillis;
+    }
+
+    // The segments of an encode that is split on this worker are kept next to its output
+    private Path getSegmentFolder(String outputFilePath, Long mediaId) {
+        return Paths.get(outputFilePath).resolveSibling(mediaId + "-segments");
+    }
+
+    // Upload an encoded segment and join all segments of the title if this was the last one to finish.
+    // Returns true if the whole title has been uploaded.
+    private boolean finishSegment(JobSlot slot, WorkItem workItem, int fileId) throws IOException, InterruptedException {
+        var status = mediaUploader.uploadSegment(workItem.mediaType, workItem.mediaId, workItem.segmentIndex,
+                Paths.get(slot.getOutputFilePath()), uploadListener(slot));
+
+        logger.info("Uploaded segment " + (workItem.segmentIndex + 1) + " of " + workItem.segmentCount + " of " + workItem.mediaType +
+                " " + workItem.mediaId + ", " + (status != null ? status.completedSegments : "?") + " segment(s) completed");
+        if (status == null || !Boolean.TRUE.equals(status.assemble)) {
+            return false;
+        }
+
+        // This worker finished the last segment, so it collects the others and uploads the whole title
+        slot.setProgress(JobStage.JOINING);
+        var workFolder = Paths.get(slot.getOutputFilePath()).resolveSibling(workItem.mediaId + "-assembly-segments");
+        var joinedFilePath = Paths.get(slot.getOutputFilePath()).resolveSibling(workItem.mediaId + ".mkv");
+        try {
+            Files.createDirectories(workFolder);
+
+            var segments = new ArrayList<Path>();
+            for (int i = 0; i < status.segmentCount; i++) {
+                var segmentPath = workFolder.resolve(String.format("encoded_%05d.mkv", i));
+                if (i == workItem.segmentIndex) {
+                    Files.copy(Paths.get(slot.getOutputFilePath()), segmentPath, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    mediaDownloader.downloadSegment(workItem.mediaType, workItem.mediaId, i, segmentPath);
+                }
+
+                segments.add(segmentPath);
+            }
+
+            // The audio, subtitles and chapters are read from the source on the bot, which reads the whole source once
+            segmentedEncoder.join(UrlInput.fromUrl(sourceRelay.getUrl(workItem.mediaType, fileId)), segments, workFolder,
+                    UrlOutput.toPath(joinedFilePath));
+            logger.info("Joined " + segments.size() + " segments into " + joinedFilePath);
+
+            slot.setProgress(JobStage.UPLOADING);
+            mediaUploader.upload(workItem.mediaType, fileId, joinedFilePath, uploadListener(slot));
+
+            segmentService.delete(workItem.mediaType, workItem.mediaId);
+            return true;
+        } finally {
+            FileUtils.deleteQuietly(workFolder.toFile());
+            Files.deleteIfExists(joinedFilePath);
+        }
+    }
+
+    // A title can not be completed once one of its segments has failed, so drop the segments stored for it
+    private void abandonSegments(WorkItem workItem) {
+        if (workItem.segmentIndex == null) {
+            return;
+        }
+
+        try {
+            segmentService.delete(workItem.mediaType, workItem.mediaId);
+        } catch (Exception e) {
+            logger.warn("Failed to delete the segments of " + workItem.mediaType + " " + workItem.mediaId, e);
+        }
+    }
+
+    private MediaUploader.UploadListener uploadListener(JobSlot slot) {
+        return (bytesUploaded, totalBytes) -> slot.setByteProgress(JobStage.UPLOADING, bytesUploaded, totalBytes);
+    }
+
+    // Record the encoder statistics of a slot before passing the progress on
+    private ProgressListener encodeProgressListener(JobSlot slot, ProgressListener progressListener) {
+        return fFmpegProgress -> {
+            metrics.recordEncodeProgress(slot, fFmpegProgress);
+            progressListener.onProgress(fFmpegProgress);
+        };
+    }
+
+    private void encode(Input input, VideoSettings videoSettings, Output output, ProgressListener progressListener) {
+        StreamSelection.map(videoSettings.apply(FFmpeg.atPath().addInput(input)))
+                .addArguments("-c:a", "copy")
+                .addArguments("-c:s", "copy")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(output)
+                .setProgressListener(progressListener)
+                .execute();
+    }
+
+    private void recordFailure(JobSlot slot) {
+        slot.recordFailure();
+        metrics.recordJobFailed();
+    }
+
+    // A bot that can not be reached fails the fetch for every slot, so it is counted for the worker as a whole
+    private void recordFetchFailure() {
+        fetchFailCount.incrementAndGet();
+        metrics.recordJobFailed();
+    }
+
+    private void deleteWorkFiles(JobSlot slot) {
+        try {
+            if (!slot.getOutputFilePath().isBlank()) {
+                Files.deleteIfExists(Paths.get(slot.getOutputFilePath()));
+            }
+
+            if (!slot.getTempFilePath().isBlank()) {
+                Files.deleteIfExists(Paths.get(slot.getTempFilePath()));
             }
+
+            if (!slot.getOutputFilePath().isBlank() && slot.getWorkItem() != null) {
+                FileUtils.deleteQuietly(getSegmentFolder(slot.getOutputFilePath(), slot.getWorkItem().mediaId).toFile());
+            }
+        } catch (Exception e) {
+            logger.error(e);
+        }
+
+        if (slot.getJournal() != null) {
+            slot.getJournal().delete();
         }
     }
 
@@ -302,43 +1147,156 @@ public class Encoder {
         }
     }
 
-    private WorkItem getNextJob() {
+    private boolean isWorkItemActive(WorkItem item) {
+        for (JobSlot slot : jobSlots) {
+            var activeItem = slot.getWorkItem();
+            if (slot.isActive() && activeItem.id != null && activeItem.id.equals(item.id)) {
+                return true;
+            }
+        }
+
+        for (PrefetchedJob prefetchedJob : prefetchedJobs) {
+            if (item.id.equals(prefetchedJob.getWorkItem().id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Get up to the requested number of jobs, starting with the unfinished jobs of this worker. The jobs are claimed from
+    // the queue in a single request, unless the bot only supports claiming one queue item at a time.
+    private List<WorkItem> getNextJobs(int count, Integer waitSeconds) {
+        var workItems = getUnfinishedJobs(count);
+
+        if (claimSupported && workItems.size() < count) {
+            try {
+                workItems.addAll(claimQueuedJobs(count - workItems.size(), waitSeconds));
+                return workItems;
+            } catch (WebApplicationException e) {
+                var status = e.getResponse().getStatus();
+                if (status != 404 && status != 405) {
+                    throw e;
+                }
+
+                // Older versions of the bot can only hand out one queue item at a time
+                logger.info("The bot does not support claiming queue items, fetching them one at a time");
+                claimSupported = false;
+            }
+        }
+
+        while (workItems.size() < count) {
+            var workItem = getQueuedJob(waitSeconds);
+            if (workItem == null) {
+                break;
+            }
+
+            workItems.add(workItem);
+
+            // Only wait for the first job, the queue was not empty after all
+            waitSeconds = null;
+        }
+
+        return workItems;
+    }
+
+    private List<WorkItem> getUnfinishedJobs(int count) {
+        var unfinishedJobs = new ArrayList<WorkItem>();
+
         // Check to make sure there are no previous jobs that this
         // encoding agent was working on that are still in the database.
         // If there are, it likely means the encoder never finished, so the
         // encoder should re-attempt the encoding process.
-        var databaseProcesses = workService.get();
-        if (!databaseProcesses.isEmpty()) {
-            for (WorkItem item : databaseProcesses) {
-                if (item.workerAgentName.equals(workerName)) {
-                    if (item.mediaType.equals("movie")) {
-                        // Fetch the movie from the API
-                        var movieInfo = movieService.get(item.mediaId);
-
-                        // If the movie has not already been optimized, retry the
-                        // optimization of this item
-                        if (!movieInfo.isOptimized) {
-                            return item;
-                        }
-                    } else if (item.mediaType.equals("episode")) {
-                        // Fetch the episode from the API
-                        var episodeInfo = episodeService.get(item.mediaId);
-
-                        // If the episode has not already been optimized, retry the
-                        // optimization of this item
-                        if (!episodeInfo.isOptimized) {
-                            return item;
-                        }
-                    }
+        var ownWorkItems = workService.get().stream()
+                .filter(item -> item.workerAgentName.equals(workerName) && !isWorkItemActive(item))
+                .filter(item -> item.mediaType.equals("movie") || item.mediaType.equals("episode"))
+                .collect(Collectors.toList());
+        if (ownWorkItems.isEmpty()) {
+            return unfinishedJobs;
+        }
+
+        // Fetch the media of all the work items at once
+        var movies = mediaCache.getMovies(ownWorkItems.stream()
+                .filter(item -> item.mediaType.equals("movie"))
+                .map(item -> item.mediaId)
+                .collect(Collectors.toList()));
+        var episodes = mediaCache.getEpisodes(ownWorkItems.stream()
+                .filter(item -> item.mediaType.equals("episode"))
+                .map(item -> item.mediaId)
+                .collect(Collectors.toList()));
+
+        for (WorkItem item : ownWorkItems) {
+            if (unfinishedJobs.size() >= count) {
+                break;
+            }
+
+            // If the media has not already been optimized, retry the
+            // optimization of this item
+            var media = item.mediaType.equals("movie") ? movies.get(item.mediaId) : episodes.get(item.mediaId);
+            var isOptimized = media instanceof Movie ? ((Movie) media).isOptimized : media instanceof Episode ? ((Episode) media).isOptimized : null;
+            if (!Boolean.TRUE.equals(isOptimized)) {
+                unfinishedJobs.add(item);
+            }
+        }
+
+        return unfinishedJobs;
+    }
+
+    // Claim queue items in one atomic request, so no two workers can be handed the same item. The claimed work items
+    // are leased to this worker, the progress reports renew the lease and the bot puts items back in the queue when
+    // their lease runs out.
+    private List<WorkItem> claimQueuedJobs(int count, Integer waitSeconds) {
+        var workItems = new ArrayList<WorkItem>();
+
+        while (workItems.size() < count) {
+            var claimRequest = new ClaimRequest();
+            claimRequest.workerAgentName = workerName;
+            claimRequest.count = count - workItems.size();
+            claimRequest.leaseSeconds = leaseDuration;
+
+            var claimedItems = queueService.claim(claimRequest, waitSeconds);
+            if (claimedItems == null || claimedItems.isEmpty()) {
+                break;
+            }
+
+            // Split long titles into segments that every worker can pick up from the queue, and claim again
+            // to replace the titles that were split
+            var splitTitles = 0;
+            for (WorkItem claimedItem : claimedItems) {
+                if (distributedEncoding && claimedItem.segmentIndex == null &&
+                        splitIntoSegments(claimedItem.mediaType, claimedItem.mediaId)) {
+                    workService.delete(claimedItem.id);
+                    splitTitles += 1;
+                } else {
+                    workItems.add(claimedItem);
                 }
             }
+
+            if (splitTitles == 0) {
+                break;
+            }
+
+            waitSeconds = null;
         }
 
+        return workItems;
+    }
+
+    // Move the next queue item to a new work item, this takes three requests and two workers can be handed the same item
+    private WorkItem getQueuedJob(Integer waitSeconds) {
         // Create a new, blank work item
         var nextWorkItem = new WorkItem();
 
         // Fetch the next encoding work assignment from the queue
-        var queueItem = queueService.next();
+        var queueItem = queueService.next(waitSeconds);
+
+        // Split long titles into segments that every worker can pick up from the queue, and keep going until
+        // the queue hands out an item that is not split
+        while (queueItem != null && distributedEncoding && queueItem.segmentIndex == null &&
+                splitIntoSegments(queueItem.mediaType, queueItem.mediaId)) {
+            queueService.delete(queueItem.id);
+            queueItem = queueService.next(null);
+        }
 
         // Ensure that a work assignment was given, otherwise cancel
         if (queueItem == null) {
@@ -350,6 +1308,10 @@ public class Encoder {
         nextWorkItem.workerAgentName = workerName;
         nextWorkItem.mediaType = queueItem.mediaType;
         nextWorkItem.mediaId = queueItem.mediaId;
+        nextWorkItem.segmentIndex = queueItem.segmentIndex;
+        nextWorkItem.segmentCount = queueItem.segmentCount;
+        nextWorkItem.segmentStart = queueItem.segmentStart;
+        nextWorkItem.segmentEnd = queueItem.segmentEnd;
         nextWorkItem.id = workService.create(nextWorkItem);
 
         // Delete the queue item
@@ -359,21 +1321,162 @@ public class Encoder {
         return nextWorkItem;
     }
 
-    public void cleanTempFolder(@Observes StartupEvent startupEvent) {
-        // Collect a list of media files to delete
-        Collection<File> mediaFiles = FileUtils.listFiles(new File(tempFolder), FileType.mediaFileExtensions, false);
+    // Add one queue item per segment of a long title, returns false if the title is too short to split or its
+    // duration is unknown. When not every segment could be queued, the ones that were are removed again so the
+    // title is only encoded as a whole.
+    private boolean splitIntoSegments(String mediaType, Long mediaId) {
+        var mediaItem = mediaCache.get(mediaType, mediaId);
+        if (mediaItem == null) {
+            return false;
+        }
 
-        // Remove any directories and hidden files from the list
-        mediaFiles.removeIf(File::isDirectory);
-        mediaFiles.removeIf(File::isHidden);
+        var duration = mediaItem instanceof Movie ? ((Movie) mediaItem).duration : ((Episode) mediaItem).duration;
+        if (duration == null || duration < distributedMinimumDuration) {
+            return false;
+        }
+
+        var segmentCount = (duration + distributedSegmentDuration - 1) / distributedSegmentDuration;
+        var segmentItemIds = new ArrayList<Integer>();
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                var segmentItem = new QueueItem();
+                segmentItem.mediaType = mediaType;
+                segmentItem.mediaId = mediaId;
+                segmentItem.segmentIndex = i;
+                segmentItem.segmentCount = segmentCount;
+                segmentItem.segmentStart = i * distributedSegmentDuration * 1000L;
+
+                // The last segment runs until the end, since the stored duration is rounded
+                segmentItem.segmentEnd = i < segmentCount - 1 ? (i + 1) * distributedSegmentDuration * 1000L : null;
+                segmentItemIds.add(queueService.create(segmentItem));
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to split " + mediaType + " " + mediaId + " into segments, encoding it as a whole", e);
+            for (Integer segmentItemId : segmentItemIds) {
+                try {
+                    queueService.delete(segmentItemId);
+                } catch (Exception deleteException) {
+                    logger.warn("Failed to remove the queued segment " + segmentItemId + " of " + mediaType + " " + mediaId, deleteException);
+                }
+            }
+
+            return false;
+        }
+
+        logger.info("Split " + mediaType + " " + mediaId + " into " + segmentCount + " segments for distributed encoding");
+        return true;
+    }
+
+    void startJobSlots(@Observes StartupEvent startupEvent) {
+        // Create the job slots and a worker thread for each of them
+        for (int i = 0; i < Math.max(1, maxConcurrentJobs); i++) {
+            var slot = new JobSlot(i);
+            metrics.registerSlot(slot);
+            jobSlots.add(slot);
+        }
+
+        // A job thread supervises the ffmpeg processes of its job and waits for its transfers, which the HTTP client
+        // runs without a thread per connection. A prefetch waits for its download on a transfer thread, and claims
+        // are made on a single dispatch thread.
+        jobExecutor = Executors.newFixedThreadPool(jobSlots.size(), new NamedThreadFactory("job-slot", false));
+        transferExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("transfer", true));
+        dispatchExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("job-dispatch", true));
+        logger.info("Started " + jobSlots.size() + " job slot(s)");
+
+        if (longPolling) {
+            jobPickupThread = new Thread(this::runJobPickup, "job-pickup");
+            jobPickupThread.setDaemon(true);
+            jobPickupThread.start();
+        }
+    }
+
+    void stopJobSlots(@Observes ShutdownEvent shutdownEvent) {
+        // Interrupted jobs keep their files and journals so they can be resumed after a restart
+        shuttingDown = true;
+        segmentedEncoder.stop();
+
+        if (jobPickupThread != null) {
+            jobPickupThread.interrupt();
+        }
+
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdownNow();
+        }
+
+        if (jobExecutor != null) {
+            jobExecutor.shutdown();
+
+            // Give the segments that are being encoded a chance to finish, whatever still runs after that is cut off
+            if (shutdownGracePeriod > 0 && jobSlots.stream().anyMatch(JobSlot::isActive)) {
+                logger.info("Waiting up to " + shutdownGracePeriod + " seconds for the running jobs to reach a checkpoint");
+                try {
+                    jobExecutor.awaitTermination(shutdownGracePeriod, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
 
-        // Delete files in the temp folder
-        mediaFiles.forEach(file -> {
+            jobExecutor.shutdownNow();
+        }
+
+        if (transferExecutor != null) {
+            transferExecutor.shutdownNow();
+        }
+    }
+
+    public void cleanTempFolder(@Observes StartupEvent startupEvent) {
+        // Keep the files of unfinished jobs that still belong to this worker so they can be resumed
+        Set<Path> resumableFiles = new HashSet<>();
+        var journals = JobJournal.loadAll(tempFolder);
+        if (!journals.isEmpty()) {
+            Set<Integer> ownWorkItems = null;
             try {
-                Files.deleteIfExists(file.getAbsoluteFile().toPath());
-            } catch (IOException e) {
-                logger.error(e);
+                ownWorkItems = workService.get().stream()
+                        .filter(item -> workerName.equals(item.workerAgentName))
+                        .map(item -> item.id)
+                        .collect(Collectors.toSet());
+            } catch (Exception e) {
+                logger.warn("Unable to fetch the work items from the server, keeping all unfinished jobs in the temp folder");
             }
-        });
+
+            for (JobJournal journal : journals) {
+                if (ownWorkItems == null || ownWorkItems.contains(journal.getWorkItemId())) {
+                    resumableFiles.add(Paths.get(journal.getSourceFilePath()).toAbsolutePath().normalize());
+                    resumableFiles.add(Paths.get(journal.getOutputFilePath()).toAbsolutePath().normalize());
+                    resumableFiles.add(getSegmentFolder(journal.getOutputFilePath(), journal.getMediaId()).toAbsolutePath().normalize());
+                } else {
+                    journal.delete();
+                }
+            }
+        }
+
+        // The journals are kept in the temp folder, the files of the jobs can be in any of the scratch folders too
+        for (Path folder : tempStorage.getFolders()) {
+            // Collect a list of media files to delete
+            Collection<File> mediaFiles = FileUtils.listFiles(folder.toFile(), FileType.mediaFileExtensions, false);
+
+            // Remove any directories, hidden files and files of resumable jobs from the list
+            mediaFiles.removeIf(File::isDirectory);
+            mediaFiles.removeIf(File::isHidden);
+            mediaFiles.removeIf(file -> resumableFiles.contains(file.toPath().toAbsolutePath().normalize()));
+
+            // Delete files in the temp folder
+            mediaFiles.forEach(file -> {
+                try {
+                    Files.deleteIfExists(file.getAbsoluteFile().toPath());
+                } catch (IOException e) {
+                    logger.error(e);
+                }
+            });
+
+            // Remove the segments of segmented encodes that never finished, unless they are the checkpoints of a resumable job
+            var segmentFolders = folder.toFile().listFiles(file -> file.isDirectory() && file.getName().endsWith("-segments") &&
+                    !resumableFiles.contains(file.toPath().toAbsolutePath().normalize()));
+            if (segmentFolders != null) {
+                for (File segmentFolder : segmentFolders) {
+                    FileUtils.deleteQuietly(segmentFolder);
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -16,11 +16,15 @@ public class AuthorizationHeaderFactory implements ClientHeadersFactory {
         MultivaluedMap<String, String> result = new MultivaluedHashMap<>();
 
         // Add basic login header
-        result.add("Authorization", "Basic " + Base64.getEncoder().encodeToString((
-                ConfigProvider.getConfig().getValue("AppSettings.username", String.class) +
-                        ":" + ConfigProvider.getConfig().getValue("AppSettings.password", String.class)).getBytes()));
+        result.add("Authorization", basicAuthorization());
 
         // Return the headers with the added auth header
         return result;
     }
+
+    public static String basicAuthorization() {
+        return "Basic " + Base64.getEncoder().encodeToString((
+                ConfigProvider.getConfig().getValue("AppSettings.username", String.class) +
+                        ":" + ConfigProvider.getConfig().getValue("AppSettings.password", String.class)).getBytes());
+    }
 }
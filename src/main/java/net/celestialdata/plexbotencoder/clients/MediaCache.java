@@ -0,0 +1,163 @@
+package net.celestialdata.plexbotencoder.clients;
+
+import net.celestialdata.plexbotencoder.clients.models.Episode;
+import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.services.EpisodeService;
+import net.celestialdata.plexbotencoder.clients.services.MovieService;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Keeps the movie and episode information fetched from the bot for a while, so the same title is not requested
+// again for every step of a job. Titles that are not cached yet can be fetched in a single request.
+@ApplicationScoped
+public class MediaCache {
+    private static final Logger logger = Logger.getLogger(MediaCache.class);
+
+    private Map<String, CachedMedia> cache;
+    private volatile boolean bulkSupported = true;
+
+    @ConfigProperty(name = "AppSettings.metadataCacheTtl", defaultValue = "300")
+    int cacheTtl;
+
+    @ConfigProperty(name = "AppSettings.metadataCacheSize", defaultValue = "1000")
+    int cacheSize;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @Inject
+    @RestClient
+    MovieService movieService;
+
+    @Inject
+    @RestClient
+    EpisodeService episodeService;
+
+    private static class CachedMedia {
+        final Object media;
+        final long expiresAtNanos;
+
+        CachedMedia(Object media, long expiresAtNanos) {
+            this.media = media;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    @PostConstruct
+    void createCache() {
+        // Evict the least recently used titles once the cache is full
+        cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMedia> eldest) {
+                return size() > cacheSize;
+            }
+        });
+
+        metrics.registerMetadataCache(cache);
+    }
+
+    // Get the movie or episode of a work item, this returns null if the bot does not know the title
+    public Object get(String mediaType, Long mediaId) {
+        return mediaType.equals("movie") ? getMovie(mediaId) : getEpisode(mediaId);
+    }
+
+    public Movie getMovie(long tmdbId) {
+        return getMovies(List.of(tmdbId)).get(tmdbId);
+    }
+
+    public Episode getEpisode(long tvdbId) {
+        return getEpisodes(List.of(tvdbId)).get(tvdbId);
+    }
+
+    public Map<Long, Movie> getMovies(Collection<Long> tmdbIds) {
+        return getAll("movie", tmdbIds, movieService::get, movieService::lookup, movie -> movie.tmdbId);
+    }
+
+    public Map<Long, Episode> getEpisodes(Collection<Long> tvdbIds) {
+        return getAll("episode", tvdbIds, episodeService::get, episodeService::lookup, episode -> episode.tvdbId);
+    }
+
+    // Forget a title, for example after its file was replaced
+    public void invalidate(String mediaType, Long mediaId) {
+        cache.remove(mediaType + ":" + mediaId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Map<Long, T> getAll(String mediaType, Collection<Long> ids, Function<Long, T> fetch,
+                                    Function<List<Long>, List<T>> bulkFetch, Function<T, Long> idOf) {
+        var now = System.nanoTime();
+        var result = new HashMap<Long, T>();
+        var missingIds = new ArrayList<Long>();
+
+        for (Long id : ids) {
+            var cachedMedia = cache.get(mediaType + ":" + id);
+            if (cachedMedia != null && now - cachedMedia.expiresAtNanos < 0) {
+                result.put(id, (T) cachedMedia.media);
+            } else if (!missingIds.contains(id)) {
+                missingIds.add(id);
+            }
+        }
+
+        metrics.recordMetadataLookups(result.size(), missingIds.size());
+        if (missingIds.isEmpty()) {
+            return result;
+        }
+
+        var fetchedMedia = new HashMap<Long, T>();
+        if (bulkSupported && missingIds.size() > 1) {
+            try {
+                metrics.recordMetadataRequest();
+                for (T media : bulkFetch.apply(missingIds)) {
+                    fetchedMedia.put(idOf.apply(media), media);
+                }
+            } catch (WebApplicationException e) {
+                var status = e.getResponse().getStatus();
+                if (status == 404 || status == 405) {
+                    // Older versions of the bot can only look up one title at a time
+                    logger.info("The bot does not support looking up several titles at once, fetching them one at a time");
+                    bulkSupported = false;
+                } else {
+                    logger.warn("Failed to look up " + missingIds.size() + " titles at once, server returned a " + status + " error code");
+                }
+            }
+        }
+
+        // Fetch whatever the bulk lookup did not return one at a time
+        for (Long id : missingIds) {
+            if (!fetchedMedia.containsKey(id)) {
+                metrics.recordMetadataRequest();
+                var media = fetch.apply(id);
+                if (media != null) {
+                    fetchedMedia.put(id, media);
+                }
+            }
+        }
+
+        var expiresAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(cacheTtl);
+        for (Long id : missingIds) {
+            var media = fetchedMedia.get(id);
+            if (media != null) {
+                cache.put(mediaType + ":" + id, new CachedMedia(media, expiresAtNanos));
+                result.put(id, media);
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,10 @@
+package net.celestialdata.plexbotencoder.clients.models;
+
+@SuppressWarnings("unused")
+public class ClaimRequest {
+    public String workerAgentName;
+    public Integer count;
+
+    // The claimed items return to the queue when their lease is not renewed within this many seconds
+    public Integer leaseSeconds;
+}
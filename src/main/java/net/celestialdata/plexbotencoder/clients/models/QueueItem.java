@@ -5,4 +5,11 @@ public class QueueItem {
     public Integer id;
     public String mediaType;
     public Long mediaId;
+
+    // Only set when the item is a single segment of a title that is encoded by several workers,
+    // the start and end are in milliseconds and the end of the last segment is left empty
+    public Integer segmentIndex;
+    public Integer segmentCount;
+    public Long segmentStart;
+    public Long segmentEnd;
 }
\ No newline at end of file
@@ -0,0 +1,8 @@
+package net.celestialdata.plexbotencoder.clients.models;
+
+@SuppressWarnings("unused")
+public class SegmentStatus {
+    public Integer segmentCount;
+    public Integer completedSegments;
+    public Boolean assemble;
+}
@@ -7,4 +7,14 @@ public class WorkItem {
     public String workerAgentName;
     public String mediaType;
     public Long mediaId;
+
+    // The epoch milliseconds at which the item returns to the queue, only set for claimed items
+    public Long leaseExpires;
+
+    // Only set when the item is a single segment of a title that is encoded by several workers,
+    // the start and end are in milliseconds and the end of the last segment is left empty
+    public Integer segmentIndex;
+    public Integer segmentCount;
+    public Long segmentStart;
+    public Long segmentEnd;
 }
\ No newline at end of file
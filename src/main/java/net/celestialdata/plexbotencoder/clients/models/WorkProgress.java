@@ -0,0 +1,13 @@
+package net.celestialdata.plexbotencoder.clients.models;
+
+@SuppressWarnings("unused")
+public class WorkProgress {
+    public Integer workItemId;
+    public String stage;
+    public Double percent;
+    public Double fps;
+    public Double speed;
+    public Long etaSeconds;
+    public Double bytesPerSecond;
+    public String progress;
+}
@@ -11,6 +11,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
+import java.util.List;
 
 @Singleton
 @Path("/api/v1/episodes")
@@ -24,6 +25,13 @@ public interface EpisodeService {
     @Produces(MediaType.APPLICATION_JSON)
     Episode get(@PathParam("tvdb_id") long id);
 
+    // Looks up several titles in one request, titles the bot does not know are left out. This is not retried,
+    // the titles that are missing from the response are fetched one at a time instead.
+    @GET
+    @Path("/lookup")
+    @Produces(MediaType.APPLICATION_JSON)
+    List<Episode> lookup(@QueryParam("id") List<Long> ids);
+
     @GET
     @Path("/download/{id}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
@@ -1,7 +1,9 @@
 package net.celestialdata.plexbotencoder.clients.services;
 
 import net.celestialdata.plexbotencoder.clients.AuthorizationHeaderFactory;
+import net.celestialdata.plexbotencoder.clients.models.ClaimRequest;
 import net.celestialdata.plexbotencoder.clients.models.QueueItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.rest.client.annotation.RegisterClientHeaders;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
@@ -9,6 +11,7 @@ import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 import javax.inject.Singleton;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.util.List;
 
 @Singleton
 @Path("/api/v1/encoding/queue")
@@ -18,16 +21,30 @@ import javax.ws.rs.core.MediaType;
 @RegisterClientHeaders(AuthorizationHeaderFactory.class)
 public interface QueueService {
 
+    @GET
+    @Retry()
+    List<QueueItem> get();
+
     @GET
     @Retry()
     @Path("/next")
-    QueueItem next();
+    QueueItem next(@QueryParam("wait") Integer waitSeconds);
+
+    // Atomically moves up to the requested number of queue items to work items leased to the worker. This is
+    // not retried, a claim that is sent twice would only hold items until their lease runs out.
+    @POST
+    @Path("/claim")
+    List<WorkItem> claim(ClaimRequest claimRequest, @QueryParam("wait") Integer waitSeconds);
 
     @GET
     @Retry()
     @Path("/{id}")
     QueueItem get(@PathParam("id") int id);
 
+    @POST
+    @Retry()
+    int create(QueueItem queueItem);
+
     @DELETE
     @Retry()
     @Path("/{id}")
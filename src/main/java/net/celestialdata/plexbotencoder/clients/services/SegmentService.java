@@ -0,0 +1,24 @@
+package net.celestialdata.plexbotencoder.clients.services;
+
+import net.celestialdata.plexbotencoder.clients.AuthorizationHeaderFactory;
+import org.eclipse.microprofile.faulttolerance.Retry;
+import org.eclipse.microprofile.rest.client.annotation.RegisterClientHeaders;
+import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+
+// Stores the encoded segments of titles that are encoded by several workers. The upload that completes
+// the last missing segment of a title is answered with assemble set, so exactly one worker joins them.
+// The segments themselves are sent and fetched by the TransferClient, which streams them without buffering.
+@Singleton
+@Path("/api/v1/encoding/segments")
+@RegisterRestClient(configKey = "AppSettings.apiAddress")
+@RegisterClientHeaders(AuthorizationHeaderFactory.class)
+public interface SegmentService {
+
+    @DELETE
+    @Retry()
+    @Path("/{mediaType}/{mediaId}")
+    void delete(@PathParam("mediaType") String mediaType, @PathParam("mediaId") long mediaId);
+}
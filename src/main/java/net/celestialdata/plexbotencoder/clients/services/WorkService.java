@@ -2,6 +2,7 @@ package net.celestialdata.plexbotencoder.clients.services;
 
 import net.celestialdata.plexbotencoder.clients.AuthorizationHeaderFactory;
 import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.rest.client.annotation.RegisterClientHeaders;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
@@ -37,6 +38,10 @@ public interface WorkService {
     @Path("/{id}")
     WorkItem update(@PathParam("id") int id, @QueryParam("progress") String progress);
 
+    @PUT
+    @Path("/progress")
+    void updateProgress(List<WorkProgress> progress);
+
     @DELETE
     @Retry()
     @Path("/{id}")
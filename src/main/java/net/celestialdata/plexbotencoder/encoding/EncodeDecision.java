@@ -0,0 +1,13 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+// What a job does with its source once it has been analyzed
+public enum EncodeDecision {
+    // Encode the video with the configured encoder
+    ENCODE,
+
+    // The video is already efficient, only copy the streams into a matroska file
+    REMUX,
+
+    // The source is already an efficient matroska file, leave it as it is
+    SKIP
+}
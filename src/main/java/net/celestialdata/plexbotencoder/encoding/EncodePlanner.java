@@ -0,0 +1,192 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import com.github.kokorin.jaffree.JaffreeException;
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.StreamType;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.Output;
+import com.github.kokorin.jaffree.ffmpeg.ProgressListener;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+// Decides whether a source is worth encoding. Sources whose video already uses an efficient codec at a low bitrate
+// are only remuxed into a matroska file, or left alone when they already are one. Optionally a short sample of the
+// source is encoded to measure the savings instead of estimating them from the codec and bitrate.
+@ApplicationScoped
+public class EncodePlanner {
+    private static final Logger logger = Logger.getLogger(EncodePlanner.class);
+    private static final List<String> EFFICIENT_CODECS = List.of("hevc", "h265", "x265", "av1");
+
+    @ConfigProperty(name = "AppSettings.encodeDecisions", defaultValue = "false")
+    boolean encodeDecisions;
+
+    @ConfigProperty(name = "AppSettings.efficientBitsPerPixel", defaultValue = "0.1")
+    double efficientBitsPerPixel;
+
+    @ConfigProperty(name = "AppSettings.sampleEncode", defaultValue = "false")
+    boolean sampleEncode;
+
+    @ConfigProperty(name = "AppSettings.sampleDuration", defaultValue = "30")
+    int sampleDuration;
+
+    @ConfigProperty(name = "AppSettings.minimumSavings", defaultValue = "10")
+    double minimumSavings;
+
+    // The codec stored with the media item is only used when the source can not be probed
+    public EncodeDecision decide(Path source, String metadataCodec, VideoSettings videoSettings) {
+        if (!encodeDecisions) {
+            return EncodeDecision.ENCODE;
+        }
+
+        FFprobeResult probeResult;
+        try {
+            probeResult = FFprobe.atPath()
+                    .setShowFormat(true)
+                    .setShowStreams(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .setInput(source)
+                    .execute();
+        } catch (JaffreeException e) {
+            logger.warn("Failed to probe " + source + ", encoding it", e);
+            return EncodeDecision.ENCODE;
+        }
+
+        var videoStream = probeResult.getStreams().stream()
+                .filter(stream -> stream.getCodecType() == StreamType.VIDEO)
+                .findFirst()
+                .orElse(null);
+        if (videoStream == null) {
+            return EncodeDecision.ENCODE;
+        }
+
+        boolean efficient;
+        if (sampleEncode) {
+            var savings = measureSavings(source, probeResult, videoSettings);
+            efficient = savings != null && savings < minimumSavings;
+            logger.info("Encoding a sample of " + source + " saved " + (savings != null ? String.format("%.1f%%", savings) : "an unknown amount"));
+        } else {
+            var codec = videoStream.getCodecName() != null ? videoStream.getCodecName() : metadataCodec;
+            var bitsPerPixel = getBitsPerPixel(videoStream, probeResult);
+            efficient = codec != null && EFFICIENT_CODECS.contains(codec.toLowerCase(Locale.ROOT)) &&
+                    bitsPerPixel != null && bitsPerPixel <= efficientBitsPerPixel;
+            logger.info("The video of " + source + " is " + codec + " at " +
+                    (bitsPerPixel != null ? String.format("%.3f", bitsPerPixel) : "an unknown number of") + " bits per pixel");
+        }
+
+        if (!efficient) {
+            return EncodeDecision.ENCODE;
+        }
+
+        // Only the container needs to change, unless it already is matroska
+        var formatName = probeResult.getFormat() != null ? probeResult.getFormat().getFormatName() : null;
+        return formatName != null && formatName.contains("matroska") ? EncodeDecision.SKIP : EncodeDecision.REMUX;
+    }
+
+    // Copy the same streams an encode would keep into a matroska file without touching them
+    public void remux(Path source, Output output, ProgressListener progressListener) {
+        StreamSelection.map(FFmpeg.atPath().addInput(UrlInput.fromPath(source)))
+                .addArguments("-c", "copy")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(output)
+                .setProgressListener(progressListener)
+                .execute();
+    }
+
+    // The video bitrate divided by the pixels shown per second, the container bitrate is used when the stream
+    // does not store its own, which includes the audio and errs on the side of encoding
+    private Double getBitsPerPixel(Stream videoStream, FFprobeResult probeResult) {
+        Long bitRate = videoStream.getBitRate() != null ? Long.valueOf(videoStream.getBitRate()) : null;
+        if (bitRate == null && probeResult.getFormat() != null) {
+            bitRate = probeResult.getFormat().getBitRate();
+        }
+
+        var frameRate = videoStream.getAvgFrameRate();
+        if (bitRate == null || videoStream.getWidth() == null || videoStream.getHeight() == null ||
+                frameRate == null || frameRate.doubleValue() <= 0) {
+            return null;
+        }
+
+        return bitRate / (videoStream.getWidth() * (double) videoStream.getHeight() * frameRate.doubleValue());
+    }
+
+    // Encode a sample from the middle of the source and compare its bitrate with the same part of the source video.
+    // Returns the savings in percent, or null if the sample could not be measured.
+    private Double measureSavings(Path source, FFprobeResult probeResult, VideoSettings videoSettings) {
+        var duration = probeResult.getFormat() != null && probeResult.getFormat().getDuration() != null ?
+                (long) (probeResult.getFormat().getDuration() * 1000) : 0;
+        var sampleLength = Math.min(sampleDuration * 1000L, duration);
+        if (sampleLength <= 0) {
+            return null;
+        }
+
+        var sampleStart = Math.max(0, duration / 2 - sampleLength / 2);
+        var sourceSample = source.resolveSibling(source.getFileName() + ".sample-source.mkv");
+        var encodedSample = source.resolveSibling(source.getFileName() + ".sample.mkv");
+
+        try {
+            FFmpeg.atPath()
+                    .addInput(UrlInput.fromPath(source).setPosition(sampleStart).setDuration(sampleLength))
+                    .addArguments("-map", "0:v:0")
+                    .addArguments("-c", "copy")
+                    .setOverwriteOutput(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .addOutput(UrlOutput.toPath(sourceSample))
+                    .execute();
+
+            videoSettings.apply(FFmpeg.atPath()
+                            .addInput(UrlInput.fromPath(source).setPosition(sampleStart).setDuration(sampleLength))
+                            .addArguments("-map", "0:v:0"))
+                    .setOverwriteOutput(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .addOutput(UrlOutput.toPath(encodedSample))
+                    .execute();
+
+            // The copied sample starts at the keyframe before the sample, so compare bitrates rather than sizes
+            var sourceBitrate = getBitrate(sourceSample);
+            var encodedBitrate = getBitrate(encodedSample);
+            if (sourceBitrate <= 0 || encodedBitrate <= 0) {
+                return null;
+            }
+
+            return 100 * (1 - encodedBitrate / sourceBitrate);
+        } catch (JaffreeException | IOException e) {
+            logger.warn("Failed to encode a sample of " + source, e);
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(sourceSample);
+                Files.deleteIfExists(encodedSample);
+            } catch (IOException e) {
+                logger.warn("Failed to delete the samples of " + source);
+            }
+        }
+    }
+
+    private double getBitrate(Path file) throws IOException {
+        var format = FFprobe.atPath()
+                .setShowFormat(true)
+                .setLogLevel(LogLevel.ERROR)
+                .setInput(file)
+                .execute()
+                .getFormat();
+
+        if (format == null || format.getDuration() == null || format.getDuration() <= 0) {
+            return 0;
+        }
+
+        return Files.size(file) * 8 / format.getDuration();
+    }
+}
@@ -0,0 +1,109 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import com.github.kokorin.jaffree.JaffreeException;
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.NullOutput;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+@ApplicationScoped
+public class MediaProbe {
+    private static final Logger logger = Logger.getLogger(MediaProbe.class);
+    private static final int CACHE_SIZE = 500;
+
+    // Durations in milliseconds by media type and id, evicting the least recently used entries
+    private final Map<String, Long> durationCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    @ConfigProperty(name = "AppSettings.durationProbe", defaultValue = "probe")
+    String durationProbe;
+
+    // Get the duration of a media file in milliseconds. The container headers are read first, then the
+    // duration stored with the media item, and only if both are missing is the whole file decoded.
+    public long getDuration(String mediaType, Long mediaId, Path source, Integer metadataDuration) {
+        var cacheKey = mediaType + ":" + mediaId;
+        var cachedDuration = durationCache.get(cacheKey);
+        if (cachedDuration != null) {
+            return cachedDuration;
+        }
+
+        long duration = 0;
+        if (!durationProbe.equalsIgnoreCase("decode")) {
+            duration = probeDuration(source);
+
+            // The media metadata stores the duration in seconds
+            if (duration <= 0 && metadataDuration != null && metadataDuration > 0) {
+                duration = metadataDuration * 1000L;
+            }
+        }
+
+        if (duration <= 0) {
+            logger.info("Unable to read the duration of " + source + " from its headers, decoding the whole file instead");
+            duration = decodeDuration(source);
+        }
+
+        if (duration > 0) {
+            durationCache.put(cacheKey, duration);
+        }
+
+        return duration;
+    }
+
+    // Read the duration from the container headers, falling back to the longest stream duration
+    private long probeDuration(Path source) {
+        try {
+            var result = FFprobe.atPath()
+                    .setShowFormat(true)
+                    .setShowStreams(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .setInput(source)
+                    .execute();
+
+            if (result.getFormat() != null && result.getFormat().getDuration() != null) {
+                return (long) (result.getFormat().getDuration() * 1000);
+            }
+
+            return result.getStreams().stream()
+                    .map(Stream::getDuration)
+                    .filter(streamDuration -> streamDuration != null)
+                    .mapToLong(streamDuration -> (long) (streamDuration * 1000))
+                    .max()
+                    .orElse(0);
+        } catch (JaffreeException e) {
+            logger.warn("Failed to probe " + source, e);
+            return 0;
+        }
+    }
+
+    private long decodeDuration(Path source) {
+        final AtomicLong duration = new AtomicLong();
+        FFmpeg.atPath()
+                .addInput(UrlInput.fromPath(source))
+                .setOverwriteOutput(true)
+                .addOutput(new NullOutput())
+                .setLogLevel(LogLevel.ERROR)
+                .setProgressListener(progress -> duration.set(progress.getTimeMillis()))
+                .execute();
+
+        return duration.get();
+    }
+
+    public void invalidate(String mediaType, Long mediaId) {
+        durationCache.remove(mediaType + ":" + mediaId);
+    }
+}
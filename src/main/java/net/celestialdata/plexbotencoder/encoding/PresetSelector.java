@@ -0,0 +1,215 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import net.celestialdata.plexbotencoder.clients.MediaCache;
+import net.celestialdata.plexbotencoder.clients.models.Episode;
+import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.models.QueueItem;
+import net.celestialdata.plexbotencoder.clients.services.QueueService;
+import net.celestialdata.plexbotencoder.clients.services.WorkService;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Picks the x265 preset of each job so the titles in the queue are encoded within the backlog target. The speed of
+// every preset is learned from the jobs this worker encoded, and the slowest preset that still meets the target is
+// used, so a long queue is worked through quickly and an empty queue gets the smallest files. The queue is shared by
+// every worker that currently has a job, and they are assumed to be about as fast as this one.
+@ApplicationScoped
+public class PresetSelector {
+    private static final Logger logger = Logger.getLogger(PresetSelector.class);
+    private static final List<String> PRESETS = List.of("ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow", "slower", "veryslow");
+
+    // Rough speed of every preset compared to medium, used for the presets that have not been measured yet
+    private static final double[] RELATIVE_SPEEDS = {10, 8, 5.5, 3, 2, 1, 0.5, 0.2, 0.08};
+    private static final double SMOOTHING = 0.3;
+    private static final int MAXIMUM_BACKLOG_ITEMS = 500;
+    private static final long BACKLOG_REFRESH_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // Pixels of video encoded per second of encoding time, by preset
+    private final Map<String, Double> measuredRates = new ConcurrentHashMap<>();
+    private Backlog backlog;
+
+    @ConfigProperty(name = "AppSettings.adaptivePreset", defaultValue = "false")
+    boolean adaptivePreset;
+
+    @ConfigProperty(name = "AppSettings.backlogTarget", defaultValue = "24")
+    double backlogTarget;
+
+    @ConfigProperty(name = "AppSettings.fastestPreset", defaultValue = "veryfast")
+    String fastestPreset;
+
+    @ConfigProperty(name = "AppSettings.slowestPreset", defaultValue = "slow")
+    String slowestPreset;
+
+    @ConfigProperty(name = "AppSettings.maxConcurrentJobs", defaultValue = "1")
+    int maxConcurrentJobs;
+
+    @Inject
+    MediaCache mediaCache;
+
+    @Inject
+    @RestClient
+    QueueService queueService;
+
+    @Inject
+    @RestClient
+    WorkService workService;
+
+    // The titles waiting in the queue and the number of workers sharing them, it is only an estimate so it is
+    // reused for a while instead of being fetched for every job
+    private static class Backlog {
+        final double queuedPixels;
+        final int activeWorkers;
+        final long fetchedAtNanos;
+
+        Backlog(double queuedPixels, int activeWorkers, long fetchedAtNanos) {
+            this.queuedPixels = queuedPixels;
+            this.activeWorkers = activeWorkers;
+            this.fetchedAtNanos = fetchedAtNanos;
+        }
+    }
+
+    // Get the preset for a job with the given duration in seconds and resolution. The default preset is used
+    // until the speed of at least one preset has been measured.
+    public String select(String defaultPreset, long durationSeconds, Integer width, Integer height) {
+        if (!adaptivePreset || measuredRates.isEmpty() || width == null || height == null) {
+            return defaultPreset;
+        }
+
+        var fastest = PRESETS.indexOf(fastestPreset);
+        var slowest = PRESETS.indexOf(slowestPreset);
+        if (fastest < 0 || slowest < 0 || fastest > slowest) {
+            logger.warn("The fastest and slowest presets must be x265 presets in order, using " + defaultPreset);
+            return defaultPreset;
+        }
+
+        // The pixels of every frame of this title and of this worker's share of everything waiting in the queue
+        var currentBacklog = getBacklog();
+        var backlogPixels = durationSeconds * (double) width * height + currentBacklog.queuedPixels / currentBacklog.activeWorkers;
+        var availableSeconds = backlogTarget * 3600 * Math.max(1, maxConcurrentJobs);
+
+        for (int i = slowest; i >= fastest; i--) {
+            var preset = PRESETS.get(i);
+            var neededSeconds = backlogPixels / estimateRate(i);
+            if (neededSeconds <= availableSeconds || i == fastest) {
+                logger.info("Using the " + preset + " preset, the backlog needs about " +
+                        Math.round(neededSeconds / 60) + " minutes of encoding at that speed");
+                return preset;
+            }
+        }
+
+        return defaultPreset;
+    }
+
+    // Remember the speed of a finished encode from the duration of the video it encoded and the time the whole
+    // encode took
+    public void recordSpeed(String preset, Integer width, Integer height, long encodedMillis, long elapsedNanos) {
+        if (!PRESETS.contains(preset) || width == null || height == null || encodedMillis <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+
+        var rate = encodedMillis / 1000. / (elapsedNanos / 1e9) * width * height;
+        measuredRates.merge(preset, rate, (previous, current) -> previous + SMOOTHING * (current - previous));
+    }
+
+    // Use the measured rate of the preset, otherwise scale the rate of the nearest measured preset
+    private double estimateRate(int presetIndex) {
+        var measuredRate = measuredRates.get(PRESETS.get(presetIndex));
+        if (measuredRate != null) {
+            return measuredRate;
+        }
+
+        for (int distance = 1; distance < PRESETS.size(); distance++) {
+            for (int index : new int[]{presetIndex - distance, presetIndex + distance}) {
+                if (index >= 0 && index < PRESETS.size() && measuredRates.containsKey(PRESETS.get(index))) {
+                    return measuredRates.get(PRESETS.get(index)) * RELATIVE_SPEEDS[presetIndex] / RELATIVE_SPEEDS[index];
+                }
+            }
+        }
+
+        return Double.MAX_VALUE;
+    }
+
+    private synchronized Backlog getBacklog() {
+        var now = System.nanoTime();
+        if (backlog == null || now - backlog.fetchedAtNanos >= BACKLOG_REFRESH_NANOS) {
+            backlog = new Backlog(getQueuedPixels(), getActiveWorkers(), now);
+        }
+
+        return backlog;
+    }
+
+    // The workers that have a job right now, including this one
+    private int getActiveWorkers() {
+        try {
+            var workers = workService.get().stream()
+                    .map(item -> item.workerAgentName)
+                    .filter(Objects::nonNull)
+                    .distinct()
+                    .count();
+            return (int) Math.max(1, workers);
+        } catch (Exception e) {
+            logger.warn("Unable to fetch the work items, assuming this worker is the only one working on the queue");
+            return 1;
+        }
+    }
+
+    // The pixels of every frame of the titles in the queue, titles without a known duration or resolution are left out
+    private double getQueuedPixels() {
+        List<QueueItem> queueItems;
+        try {
+            queueItems = queueService.get().stream().limit(MAXIMUM_BACKLOG_ITEMS).collect(Collectors.toList());
+        } catch (Exception e) {
+            logger.warn("Unable to fetch the queue, only the current job counts towards the backlog");
+            return 0;
+        }
+
+        var movies = mediaCache.getMovies(queueItems.stream()
+                .filter(item -> item.mediaType.equals("movie"))
+                .map(item -> item.mediaId)
+                .collect(Collectors.toSet()));
+        var episodes = mediaCache.getEpisodes(queueItems.stream()
+                .filter(item -> item.mediaType.equals("episode"))
+                .map(item -> item.mediaId)
+                .collect(Collectors.toSet()));
+
+        double pixels = 0;
+        for (QueueItem item : queueItems) {
+            Integer duration = null, width = null, height = null;
+            if (item.mediaType.equals("movie") && movies.containsKey(item.mediaId)) {
+                Movie movie = movies.get(item.mediaId);
+                duration = movie.duration;
+                width = movie.width;
+                height = movie.height;
+            } else if (item.mediaType.equals("episode") && episodes.containsKey(item.mediaId)) {
+                Episode episode = episodes.get(item.mediaId);
+                duration = episode.duration;
+                width = episode.width;
+                height = episode.height;
+            }
+
+            if (duration == null || width == null || height == null) {
+                continue;
+            }
+
+            // A segment only covers part of the title
+            double seconds = duration;
+            if (item.segmentStart != null) {
+                seconds = (item.segmentEnd != null ? item.segmentEnd : duration * 1000L) / 1000. - item.segmentStart / 1000.;
+            }
+
+            pixels += seconds * width * height;
+        }
+
+        return pixels;
+    }
+}
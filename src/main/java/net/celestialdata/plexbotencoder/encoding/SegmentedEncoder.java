@@ -0,0 +1,245 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import com.github.kokorin.jaffree.JaffreeException;
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.Output;
+import com.github.kokorin.jaffree.ffmpeg.ProgressListener;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import net.celestialdata.plexbotencoder.utilities.NamedThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+// Encodes the video of a file as a number of keyframe aligned segments that are encoded by
+// several ffmpeg processes at the same time, then joins the segments back together without
+// re-encoding them and adds the untouched audio and subtitles of the source. Every finished
+// segment stays in the work folder as a checkpoint, so an encode that was interrupted continues
+// with the segments that are still missing.
+@ApplicationScoped
+public class SegmentedEncoder {
+    private static final Logger logger = Logger.getLogger(SegmentedEncoder.class);
+    private static final String SPLIT_MARKER = "split.done";
+    private static final String SETTINGS_FILE = "settings.txt";
+
+    // Set once the worker shuts down and never cleared, the process exits afterwards
+    private volatile boolean stopping = false;
+
+    @ConfigProperty(name = "AppSettings.segmentDuration", defaultValue = "120")
+    int segmentDuration;
+
+    @ConfigProperty(name = "AppSettings.segmentEncoders", defaultValue = "2")
+    int segmentEncoders;
+
+    // Encode the source with several ffmpeg processes at the same time, or one at a time when the segments are only
+    // used as checkpoints. The work folder is removed once the segments are joined, but is left behind when the encode
+    // fails so the caller can decide between continuing it later and deleting it.
+    public void encode(Path source, Path workFolder, VideoSettings videoSettings, Output output, boolean parallel,
+                       LongConsumer progressConsumer) throws IOException, InterruptedException {
+        Files.createDirectories(workFolder);
+
+        var segments = prepareSegments(source, workFolder, videoSettings);
+        var encodedSegments = encodeSegments(segments, videoSettings, parallel ? segmentEncoders : 1, progressConsumer);
+        join(UrlInput.fromPath(source), encodedSegments, workFolder, output);
+        FileUtils.deleteQuietly(workFolder.toFile());
+    }
+
+    // Start no more segments, the segments that are being encoded still finish so they can be kept
+    public void stop() {
+        stopping = true;
+    }
+
+    // Encode only the video between two points in time of the source, the end can be null to encode until
+    // the end of the source. The seek decodes from the keyframe before the start, so the segment starts exactly there.
+    // A source that is read over http is only downloaded from around the start of the range.
+    public void encodeRange(UrlInput source, long startMillis, Long endMillis, VideoSettings videoSettings, Output output,
+                            ProgressListener progressListener) {
+        var input = source.setPosition(startMillis);
+        if (endMillis != null) {
+            input.setDuration(endMillis - startMillis);
+        }
+
+        videoSettings.apply(FFmpeg.atPath()
+                        .addInput(input)
+                        .addArguments("-map", "0:v:0"))
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(output)
+                .setProgressListener(progressListener)
+                .execute();
+    }
+
+    // Reuse the segments an earlier run left in the work folder, unless they were encoded with other settings
+    private List<Path> prepareSegments(Path source, Path workFolder, VideoSettings videoSettings) throws IOException {
+        var settings = videoSettings.getEncoder() + " crf " + videoSettings.getCrf() + " preset " + videoSettings.getPreset();
+        var settingsFile = workFolder.resolve(SETTINGS_FILE);
+        if (Files.exists(workFolder.resolve(SPLIT_MARKER)) && Files.exists(settingsFile) && Files.readString(settingsFile).equals(settings)) {
+            var segments = listSegments(workFolder, "source_");
+            logger.info("Continuing the encode of " + source + " with " + listSegments(workFolder, "encoded_").size() +
+                    " of " + segments.size() + " segments already encoded");
+            return segments;
+        }
+
+        FileUtils.cleanDirectory(workFolder.toFile());
+        var segments = splitSource(source, workFolder);
+        Files.writeString(settingsFile, settings);
+        Files.createFile(workFolder.resolve(SPLIT_MARKER));
+        logger.info("Split " + source + " into " + segments.size() + " segments");
+        return segments;
+    }
+
+    // Copy the video stream into segments, the segment muxer only cuts at keyframes
+    private List<Path> splitSource(Path source, Path workFolder) throws IOException {
+        FFmpeg.atPath()
+                .addInput(UrlInput.fromPath(source))
+                .addArguments("-map", "0:v:0")
+                .addArguments("-c", "copy")
+                .addArguments("-segment_time", String.valueOf(segmentDuration))
+                .addArguments("-reset_timestamps", "1")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(UrlOutput.toPath(workFolder.resolve("source_%05d.mkv")).setFormat("segment"))
+                .execute();
+
+        return listSegments(workFolder, "source_");
+    }
+
+    private List<Path> listSegments(Path workFolder, String prefix) throws IOException {
+        try (var files = Files.list(workFolder)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<Path> encodeSegments(List<Path> segments, VideoSettings videoSettings, int encoderCount, LongConsumer progressConsumer)
+            throws IOException, InterruptedException {
+        var segmentProgress = new long[segments.size()];
+        var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(encoderCount, segments.size())),
+                new NamedThreadFactory("segment-encoder", false));
+        var encodedSegments = new ArrayList<Path>();
+        var tasks = new ArrayList<Future<?>>();
+
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                final var index = i;
+                var segment = segments.get(i);
+                var encodedSegment = segment.resolveSibling(segment.getFileName().toString().replace("source_", "encoded_"));
+                encodedSegments.add(encodedSegment);
+
+                // A segment that an earlier run finished counts as encoded right away
+                if (Files.exists(encodedSegment)) {
+                    segmentProgress[i] = getDurationMillis(encodedSegment);
+                    continue;
+                }
+
+                tasks.add(executor.submit(() -> {
+                    if (stopping) {
+                        throw new IOException("The encode was stopped before segment " + (index + 1));
+                    }
+
+                    // The segment is only put in place once it is complete, so a cut off segment is never reused
+                    var partialSegment = segment.resolveSibling(segment.getFileName().toString().replace("source_", "partial_"));
+                    videoSettings.apply(FFmpeg.atPath()
+                                    .addInput(UrlInput.fromPath(segment))
+                                    .addArguments("-map", "0:v:0"))
+                            .setOverwriteOutput(true)
+                            .setLogLevel(LogLevel.ERROR)
+                            .addOutput(UrlOutput.toPath(partialSegment))
+                            .setProgressListener(progress -> {
+                                synchronized (segmentProgress) {
+                                    segmentProgress[index] = progress.getTimeMillis();
+                                    reportProgress(segmentProgress, progressConsumer);
+                                }
+                            })
+                            .execute();
+                    Files.move(partialSegment, encodedSegment, StandardCopyOption.ATOMIC_MOVE);
+                    return null;
+                }));
+            }
+
+            synchronized (segmentProgress) {
+                reportProgress(segmentProgress, progressConsumer);
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            // Let the segments that are still being encoded reach their checkpoint, the caller cuts them off by
+            // interrupting this thread when it can not wait that long
+            if (stopping) {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                throw new IOException("The encode was stopped at a checkpoint", e.getCause());
+            }
+
+            throw new IOException("Failed to encode a segment", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return encodedSegments;
+    }
+
+    // Report the combined encoded time of all segments
+    private void reportProgress(long[] segmentProgress, LongConsumer progressConsumer) {
+        long total = 0;
+        for (long value : segmentProgress) {
+            total += value;
+        }
+
+        progressConsumer.accept(total);
+    }
+
+    private long getDurationMillis(Path segment) {
+        try {
+            var format = FFprobe.atPath()
+                    .setShowFormat(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .setInput(segment)
+                    .execute()
+                    .getFormat();
+            return format != null && format.getDuration() != null ? (long) (format.getDuration() * 1000) : 0;
+        } catch (JaffreeException e) {
+            logger.debug("Failed to probe the encoded segment " + segment, e);
+            return 0;
+        }
+    }
+
+    // Join the encoded segments and add every audio and subtitle stream of the source. The metadata and chapters are
+    // also taken from the source, ffmpeg would otherwise take them from the segments, which have none.
+    public void join(UrlInput source, List<Path> encodedSegments, Path workFolder, Output output) throws IOException {
+        var concatList = workFolder.resolve("segments.txt");
+        Files.write(concatList, encodedSegments.stream()
+                .map(segment -> "file '" + segment.toAbsolutePath().toString().replace("'", "'\\''") + "'")
+                .collect(Collectors.toList()));
+
+        StreamSelection.map(FFmpeg.atPath()
+                        .addInput(UrlInput.fromPath(concatList).setFormat("concat").addArguments("-safe", "0"))
+                        .addInput(source), 0, 1)
+                .addArguments("-map_metadata", "1")
+                .addArguments("-map_chapters", "1")
+                .addArguments("-c", "copy")
+                .setOverwriteOutput(true)
+                .setLogLevel(LogLevel.ERROR)
+                .addOutput(output)
+                .execute();
+    }
+}
@@ -0,0 +1,23 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+// The streams of a source that end up in the output. An encode, a remux and a join of encoded segments all keep the
+// main video stream with every audio and subtitle stream, ffmpeg on its own would keep only one of each.
+public final class StreamSelection {
+    private StreamSelection() {
+    }
+
+    // Map the streams of a source that is the first input
+    public static FFmpeg map(FFmpeg ffmpeg) {
+        return map(ffmpeg, 0, 0);
+    }
+
+    // Map the video of one input with the audio and subtitles of another, for a video that was encoded on its own
+    public static FFmpeg map(FFmpeg ffmpeg, int videoInput, int sourceInput) {
+        return ffmpeg
+                .addArguments("-map", videoInput + ":v:0")
+                .addArguments("-map", sourceInput + ":a?")
+                .addArguments("-map", sourceInput + ":s?");
+    }
+}
@@ -0,0 +1,37 @@
+package net.celestialdata.plexbotencoder.encoding;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import net.celestialdata.plexbotencoder.encoding.backends.EncoderBackend;
+
+// The video encoder arguments that are used for a job
+public class VideoSettings {
+    private final EncoderBackend backend;
+    private final String crf;
+    private final String preset;
+
+    public VideoSettings(EncoderBackend backend, String crf, String preset) {
+        this.backend = backend;
+        this.crf = crf;
+        this.preset = preset;
+    }
+
+    public FFmpeg apply(FFmpeg ffmpeg) {
+        return backend.apply(ffmpeg, crf, preset);
+    }
+
+    public EncoderBackend getBackend() {
+        return backend;
+    }
+
+    public String getEncoder() {
+        return backend.getName();
+    }
+
+    public String getCrf() {
+        return crf;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+}
@@ -0,0 +1,33 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+import javax.enterprise.context.ApplicationScoped;
+
+// The HEVC encoder of AMD graphics cards, it is given the same arguments as the CPU encoder
+@ApplicationScoped
+public class AmfBackend implements EncoderBackend {
+
+    @Override
+    public String getName() {
+        return "hevc_amf";
+    }
+
+    @Override
+    public boolean isHardware() {
+        return true;
+    }
+
+    @Override
+    public String getDefaultPreset() {
+        return "medium";
+    }
+
+    @Override
+    public FFmpeg apply(FFmpeg ffmpeg, String crf, String preset) {
+        return ffmpeg
+                .addArguments("-c:v", "hevc_amf")
+                .addArguments("-crf", crf)
+                .addArguments("-preset", preset);
+    }
+}
@@ -0,0 +1,29 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+// A video encoder of ffmpeg that jobs can use. Every implementation is an application scoped bean, so adding
+// a class to this package is all it takes to make a new encoder available to AppSettings.encoder.
+public interface EncoderBackend {
+
+    // The name of the encoder in ffmpeg, this is also the value of AppSettings.encoder that selects it
+    String getName();
+
+    boolean isHardware();
+
+    String getDefaultPreset();
+
+    // Whether the encoder uses the x264 and x265 preset names, which the adaptive preset selection picks from
+    default boolean hasX26xPresets() {
+        return false;
+    }
+
+    // Add the encoder arguments, the CRF is always given on the scale of x265 and converted by each encoder
+    FFmpeg apply(FFmpeg ffmpeg, String crf, String preset);
+
+    // Move a CRF to the scale of another encoder, keeping it within the range that encoder accepts
+    static String convertCrf(String crf, double offset, double maximum) {
+        var converted = Math.max(0, Math.min(maximum, Double.parseDouble(crf) + offset));
+        return converted == Math.rint(converted) ? String.valueOf((long) converted) : String.valueOf(converted);
+    }
+}
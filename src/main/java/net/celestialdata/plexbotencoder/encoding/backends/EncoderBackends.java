@@ -0,0 +1,238 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.JaffreeException;
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.NullOutput;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import io.quarkus.runtime.StartupEvent;
+import org.apache.commons.lang3.SystemUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.interceptor.Interceptor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+// Chooses the encoder backend the jobs use. The backend is either configured by name, or picked automatically,
+// in which case the available CPU encoders can be calibrated on this host by encoding a short test clip with
+// each of them and using the fastest one that reaches the quality and size targets.
+@ApplicationScoped
+public class EncoderBackends {
+    private static final Logger logger = Logger.getLogger(EncoderBackends.class);
+    private static final Pattern SSIM_PATTERN = Pattern.compile("SSIM .* All:([0-9.]+)");
+    private static final String REFERENCE_BACKEND = "libx265";
+
+    private volatile EncoderBackend selectedBackend;
+
+    @ConfigProperty(name = "AppSettings.encoder", defaultValue = "auto")
+    String encoder;
+
+    @ConfigProperty(name = "AppSettings.accelerationHardware")
+    String accelerationHardware;
+
+    @ConfigProperty(name = "AppSettings.crf")
+    String crf;
+
+    @ConfigProperty(name = "AppSettings.tempFolder")
+    String tempFolder;
+
+    @ConfigProperty(name = "AppSettings.encoderCalibration", defaultValue = "false")
+    boolean encoderCalibration;
+
+    @ConfigProperty(name = "AppSettings.calibrationDuration", defaultValue = "5")
+    int calibrationDuration;
+
+    @ConfigProperty(name = "AppSettings.calibrationMinimumSsim", defaultValue = "0.95")
+    double calibrationMinimumSsim;
+
+    @ConfigProperty(name = "AppSettings.calibrationMaximumSize", defaultValue = "110")
+    double calibrationMaximumSize;
+
+    @Inject
+    @Any
+    Instance<EncoderBackend> backends;
+
+    private static class CalibrationResult {
+        final EncoderBackend backend;
+        final double fps;
+        final long size;
+        final double ssim;
+
+        CalibrationResult(EncoderBackend backend, double fps, long size, double ssim) {
+            this.backend = backend;
+            this.fps = fps;
+            this.size = size;
+            this.ssim = ssim;
+        }
+    }
+
+    // Pick the backend, and run the calibration if it is enabled, before the job slots are started so no job
+    // waits for the test encodes
+    void selectAtStartup(@Observes @Priority(Interceptor.Priority.APPLICATION) StartupEvent startupEvent) {
+        getBackend();
+    }
+
+    // Get the backend for the jobs of this worker, it has been selected at startup
+    public EncoderBackend getBackend() {
+        var backend = selectedBackend;
+        if (backend != null) {
+            return backend;
+        }
+
+        synchronized (this) {
+            if (selectedBackend == null) {
+                selectedBackend = selectBackend();
+                logger.info("Encoding with " + selectedBackend.getName());
+            }
+
+            return selectedBackend;
+        }
+    }
+
+    private EncoderBackend selectBackend() {
+        if (!encoder.equalsIgnoreCase("auto")) {
+            var configuredBackend = findBackend(encoder);
+            if (configuredBackend != null) {
+                return configuredBackend;
+            }
+
+            logger.warn("Unknown encoder " + encoder + ", the available encoders are " + backends.stream()
+                    .map(EncoderBackend::getName)
+                    .collect(Collectors.joining(", ")));
+        }
+
+        // The graphics card encoders are only used on Windows
+        EncoderBackend defaultBackend = findBackend(REFERENCE_BACKEND);
+        if (SystemUtils.IS_OS_WINDOWS && accelerationHardware.equalsIgnoreCase("nvidia")) {
+            defaultBackend = findBackend("hevc_nvenc");
+        } else if (SystemUtils.IS_OS_WINDOWS && accelerationHardware.equalsIgnoreCase("amd")) {
+            defaultBackend = findBackend("hevc_amf");
+        }
+
+        if (!encoderCalibration || defaultBackend.isHardware()) {
+            return defaultBackend;
+        }
+
+        var calibratedBackend = calibrate();
+        return calibratedBackend != null ? calibratedBackend : defaultBackend;
+    }
+
+    private EncoderBackend findBackend(String name) {
+        return backends.stream()
+                .filter(backend -> backend.getName().equalsIgnoreCase(name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    // Encode the test clip with every CPU backend ffmpeg supports and pick the fastest one that is at least as good
+    // as the quality target and no larger than the size target, which is relative to the output of libx265
+    private EncoderBackend calibrate() {
+        var results = new ArrayList<CalibrationResult>();
+        for (EncoderBackend backend : backends) {
+            if (!backend.isHardware()) {
+                var result = calibrate(backend);
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+        }
+
+        var reference = results.stream()
+                .filter(result -> result.backend.getName().equals(REFERENCE_BACKEND))
+                .findFirst()
+                .orElse(null);
+
+        return results.stream()
+                .filter(result -> result.ssim >= calibrationMinimumSsim)
+                .filter(result -> reference == null || result.size * 100. / reference.size <= calibrationMaximumSize)
+                .max((a, b) -> Double.compare(a.fps, b.fps))
+                .map(result -> result.backend)
+                .orElse(null);
+    }
+
+    private CalibrationResult calibrate(EncoderBackend backend) {
+        var testClip = "testsrc2=size=1280x720:rate=24:duration=" + calibrationDuration;
+        Path output = Paths.get(tempFolder, ".calibration-" + backend.getName() + ".mkv");
+
+        try {
+            // The speed is measured between the first and the last progress report, so the time ffmpeg takes to
+            // start and to set up the encoder is left out
+            var firstReportNanos = new AtomicLong();
+            var firstReportFrames = new AtomicLong();
+            var lastReportNanos = new AtomicLong();
+            var lastReportFrames = new AtomicLong();
+            var start = System.nanoTime();
+            backend.apply(FFmpeg.atPath().addInput(UrlInput.fromUrl(testClip).setFormat("lavfi")), crf, backend.getDefaultPreset())
+                    .setOverwriteOutput(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .addOutput(UrlOutput.toPath(output))
+                    .setProgressListener(progress -> {
+                        var frames = progress.getFrame() != null ? progress.getFrame() : 0;
+                        if (firstReportNanos.get() == 0) {
+                            firstReportNanos.set(System.nanoTime());
+                            firstReportFrames.set(frames);
+                        }
+
+                        lastReportNanos.set(System.nanoTime());
+                        lastReportFrames.set(frames);
+                    })
+                    .execute();
+
+            // A clip that is encoded before the second report falls back to the time of the whole run
+            var frames = (double) (lastReportFrames.get() - firstReportFrames.get());
+            var seconds = (lastReportNanos.get() - firstReportNanos.get()) / (double) TimeUnit.SECONDS.toNanos(1);
+            if (frames <= 0 || seconds <= 0) {
+                frames = calibrationDuration * 24;
+                seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            }
+
+            // Compare the encoded clip to the test clip it was made from
+            final var ssim = new AtomicReference<Double>();
+            FFmpeg.atPath()
+                    .addInput(UrlInput.fromPath(output))
+                    .addInput(UrlInput.fromUrl(testClip).setFormat("lavfi"))
+                    .addArguments("-lavfi", "ssim")
+                    .setOverwriteOutput(true)
+                    .setLogLevel(LogLevel.INFO)
+                    .addOutput(new NullOutput(false))
+                    .setOutputListener(line -> {
+                        var matcher = SSIM_PATTERN.matcher(line);
+                        if (matcher.find()) {
+                            ssim.set(Double.parseDouble(matcher.group(1)));
+                        }
+                    })
+                    .execute();
+
+            var result = new CalibrationResult(backend, frames / seconds, Files.size(output),
+                    ssim.get() != null ? ssim.get() : 0);
+            logger.info(String.format("Calibrated %s: %.1f fps, %d bytes, SSIM %.4f", backend.getName(), result.fps, result.size, result.ssim));
+            return result;
+        } catch (JaffreeException | IOException e) {
+            logger.info("Skipping " + backend.getName() + ", it is not available in this build of ffmpeg");
+            logger.debug("Calibration of " + backend.getName() + " failed", e);
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(output);
+            } catch (IOException e) {
+                logger.warn("Failed to delete the calibration clip " + output);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+import javax.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+public class Libx264Backend implements EncoderBackend {
+
+    @Override
+    public String getName() {
+        return "libx264";
+    }
+
+    @Override
+    public boolean isHardware() {
+        return false;
+    }
+
+    @Override
+    public String getDefaultPreset() {
+        return "medium";
+    }
+
+    @Override
+    public boolean hasX26xPresets() {
+        return true;
+    }
+
+    // x264 reaches the quality of x265 at a CRF about 5 lower
+    @Override
+    public FFmpeg apply(FFmpeg ffmpeg, String crf, String preset) {
+        return ffmpeg
+                .addArguments("-c:v", "libx264")
+                .addArguments("-crf", EncoderBackend.convertCrf(crf, -5, 51))
+                .addArguments("-preset", preset);
+    }
+}
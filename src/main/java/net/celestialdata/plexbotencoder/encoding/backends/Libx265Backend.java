@@ -0,0 +1,37 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+import javax.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+public class Libx265Backend implements EncoderBackend {
+
+    @Override
+    public String getName() {
+        return "libx265";
+    }
+
+    @Override
+    public boolean isHardware() {
+        return false;
+    }
+
+    @Override
+    public String getDefaultPreset() {
+        return "medium";
+    }
+
+    @Override
+    public boolean hasX26xPresets() {
+        return true;
+    }
+
+    @Override
+    public FFmpeg apply(FFmpeg ffmpeg, String crf, String preset) {
+        return ffmpeg
+                .addArguments("-c:v", "libx265")
+                .addArguments("-crf", crf)
+                .addArguments("-preset", preset);
+    }
+}
@@ -0,0 +1,34 @@
+package net.celestialdata.plexbotencoder.encoding.backends;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+
+import javax.enterprise.context.ApplicationScoped;
+
+@ApplicationScoped
+public class SvtAv1Backend implements EncoderBackend {
+
+    @Override
+    public String getName() {
+        return "libsvtav1";
+    }
+
+    @Override
+    public boolean isHardware() {
+        return false;
+    }
+
+    // SVT-AV1 numbers its presets from 0, the slowest, to 13
+    @Override
+    public String getDefaultPreset() {
+        return "8";
+    }
+
+    // SVT-AV1 reaches the quality of x265 at a CRF about 7 higher, on a scale that goes up to 63
+    @Override
+    public FFmpeg apply(FFmpeg ffmpeg, String crf, String preset) {
+        return ffmpeg
+                .addArguments("-c:v", "libsvtav1")
+                .addArguments("-crf", EncoderBackend.convertCrf(crf, 7, 63))
+                .addArguments("-preset", preset);
+    }
+}
@@ -0,0 +1,223 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import net.celestialdata.plexbotencoder.transfer.Checksums;
+import net.celestialdata.plexbotencoder.transfer.DownloadState;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+// A small file stored next to the temporary files of a job that records how far the job got,
+// so that a restarted worker can continue the job instead of starting it over
+public class JobJournal {
+    private static final Logger logger = Logger.getLogger(JobJournal.class);
+    private static final String FILE_EXTENSION = ".journal";
+
+    public enum Stage {
+        DOWNLOADING,
+        DOWNLOADED,
+        ENCODED
+    }
+
+    private final Path path;
+    private final DownloadState downloadState = new DownloadState();
+    private Integer workItemId;
+    private String mediaType;
+    private Long mediaId;
+    private Integer segmentIndex;
+    private Integer fileId;
+    private String sourceFilePath = "";
+    private String outputFilePath = "";
+    private String preset;
+    private volatile Stage stage = Stage.DOWNLOADING;
+
+    private JobJournal(Path path) {
+        this.path = path;
+    }
+
+    public static JobJournal create(String tempFolder, Integer workItemId, String mediaType, Long mediaId, Integer segmentIndex, Integer fileId) {
+        var journal = new JobJournal(buildPath(tempFolder, mediaType, mediaId, segmentIndex));
+        journal.workItemId = workItemId;
+        journal.mediaType = mediaType;
+        journal.mediaId = mediaId;
+        journal.segmentIndex = segmentIndex;
+        journal.fileId = fileId;
+        return journal;
+    }
+
+    // Load the journal of a media item if one was left behind by an earlier run
+    public static Optional<JobJournal> load(String tempFolder, String mediaType, Long mediaId, Integer segmentIndex) {
+        return load(buildPath(tempFolder, mediaType, mediaId, segmentIndex));
+    }
+
+    public static List<JobJournal> loadAll(String tempFolder) {
+        var journals = new ArrayList<JobJournal>();
+
+        try (var files = Files.newDirectoryStream(Paths.get(tempFolder), "*" + FILE_EXTENSION)) {
+            files.forEach(file -> load(file).ifPresent(journals::add));
+        } catch (IOException e) {
+            logger.error("Failed to read the job journals in the temp folder", e);
+        }
+
+        return journals;
+    }
+
+    private static Optional<JobJournal> load(Path path) {
+        if (Files.notExists(path)) {
+            return Optional.empty();
+        }
+
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            var properties = new Properties();
+            properties.load(inputStream);
+
+            var journal = new JobJournal(path);
+            journal.workItemId = Integer.valueOf(properties.getProperty("workItemId"));
+            journal.mediaType = properties.getProperty("mediaType");
+            journal.mediaId = Long.valueOf(properties.getProperty("mediaId"));
+            journal.segmentIndex = properties.containsKey("segmentIndex") ? Integer.valueOf(properties.getProperty("segmentIndex")) : null;
+            journal.fileId = Integer.valueOf(properties.getProperty("fileId"));
+            journal.sourceFilePath = properties.getProperty("sourceFilePath", "");
+            journal.outputFilePath = properties.getProperty("outputFilePath", "");
+            journal.preset = properties.getProperty("preset");
+            journal.stage = Stage.valueOf(properties.getProperty("stage"));
+            journal.downloadState.setTotalBytes(Long.parseLong(properties.getProperty("contentLength", "-1")));
+
+            // Each part is stored as start,length,received,checksum, journals of older versions have no checksum
+            for (int i = 0; properties.containsKey("part." + i); i++) {
+                var values = properties.getProperty("part." + i).split(",");
+                var received = Long.parseLong(values[2]);
+                journal.downloadState.addPart(new DownloadState.Part(Long.parseLong(values[0]), Long.parseLong(values[1]), received,
+                        values.length > 3 ? Long.parseLong(values[3]) : received == 0 ? 0 : Checksums.UNKNOWN));
+            }
+
+            return Optional.of(journal);
+        } catch (Exception e) {
+            logger.warn("Ignoring the unreadable job journal " + path, e);
+            return Optional.empty();
+        }
+    }
+
+    // Each segment of a title that is encoded by several workers has its own journal
+    private static Path buildPath(String tempFolder, String mediaType, Long mediaId, Integer segmentIndex) {
+        var name = mediaType + "-" + mediaId + (segmentIndex != null ? "-segment-" + segmentIndex : "");
+        return Paths.get(tempFolder, name + FILE_EXTENSION);
+    }
+
+    public synchronized void save() throws IOException {
+        var properties = new Properties();
+        properties.setProperty("workItemId", String.valueOf(workItemId));
+        properties.setProperty("mediaType", mediaType);
+        properties.setProperty("mediaId", String.valueOf(mediaId));
+        if (segmentIndex != null) {
+            properties.setProperty("segmentIndex", String.valueOf(segmentIndex));
+        }
+        properties.setProperty("fileId", String.valueOf(fileId));
+        properties.setProperty("sourceFilePath", sourceFilePath);
+        properties.setProperty("outputFilePath", outputFilePath);
+        if (preset != null) {
+            properties.setProperty("preset", preset);
+        }
+        properties.setProperty("stage", stage.name());
+        properties.setProperty("contentLength", String.valueOf(downloadState.getTotalBytes()));
+        properties.setProperty("bytesReceived", String.valueOf(downloadState.getReceivedBytes()));
+
+        var parts = downloadState.getParts();
+        for (int i = 0; i < parts.size(); i++) {
+            var part = parts.get(i).snapshot();
+            properties.setProperty("part." + i, part.getStart() + "," + part.getLength() + "," + part.getReceived() + "," + part.getChecksum());
+        }
+
+        // Write to a temporary file first so a crash never leaves a half written journal behind
+        var temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporaryPath)) {
+            properties.store(outputStream, "plexbot-encoder job journal");
+        }
+
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Save the journal, only logging a failure since the job itself can continue without it
+    public void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warn("Failed to save the job journal " + path, e);
+        }
+    }
+
+    public synchronized void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete the job journal " + path, e);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Integer getWorkItemId() {
+        return workItemId;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public Long getMediaId() {
+        return mediaId;
+    }
+
+    public Integer getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    public Integer getFileId() {
+        return fileId;
+    }
+
+    public DownloadState getDownloadState() {
+        return downloadState;
+    }
+
+    public String getSourceFilePath() {
+        return sourceFilePath;
+    }
+
+    public void setSourceFilePath(String sourceFilePath) {
+        this.sourceFilePath = sourceFilePath;
+    }
+
+    public String getOutputFilePath() {
+        return outputFilePath;
+    }
+
+    public void setOutputFilePath(String outputFilePath) {
+        this.outputFilePath = outputFilePath;
+    }
+
+    // The preset of an encode that keeps checkpoints, a resumed encode has to use it again for its segments to fit together
+    public String getPreset() {
+        return preset;
+    }
+
+    public void setPreset(String preset) {
+        this.preset = preset;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public void setStage(Stage stage) {
+        this.stage = stage;
+    }
+}
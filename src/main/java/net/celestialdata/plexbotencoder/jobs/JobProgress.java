@@ -0,0 +1,218 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
+
+import java.lang.invoke.VarHandle;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The progress of a job as a stage, how far the stage has come in bytes or milliseconds of media, and the
+// statistics of the encoder. The download and encoder callbacks update it many times a second, so an update
+// only stores a few numbers: the values are published with a sequence number that is odd while an update is
+// being written, and readers retry until they have read all values of the same update. Nothing is formatted
+// until a report is sent.
+public class JobProgress {
+    private final AtomicLong sequence = new AtomicLong();
+    private JobStage stage = JobStage.LOADING;
+    private long stageStartNanos = System.nanoTime();
+    private long startBytes = -1;
+    private long doneBytes;
+    private long totalBytes;
+    private long doneMillis;
+    private long totalMillis;
+    private long frames;
+    private double fps;
+    private double speed;
+
+    // A consistent copy of the progress, taken when a report is built
+    private static class Snapshot {
+        JobStage stage;
+        long stageStartNanos;
+        long startBytes;
+        long doneBytes;
+        long totalBytes;
+        long doneMillis;
+        long totalMillis;
+        long frames;
+        double fps;
+        double speed;
+
+        // The percentage of the stage, or -1 if the stage does not report one
+        double getPercent() {
+            if (totalBytes > 0) {
+                return Math.min(100, 100. * doneBytes / totalBytes);
+            } else if (totalMillis > 0) {
+                return Math.min(100, 100. * doneMillis / totalMillis);
+            }
+
+            return -1;
+        }
+
+        // The bytes moved per second since the stage started, a resumed transfer only counts the bytes of this run
+        double getBytesPerSecond() {
+            var elapsedSeconds = (System.nanoTime() - stageStartNanos) / 1e9;
+            return startBytes >= 0 && elapsedSeconds > 0 ? (doneBytes - startBytes) / elapsedSeconds : 0;
+        }
+    }
+
+    public void update(JobStage stage) {
+        var writeSequence = beginWrite();
+        setStage(stage);
+        endWrite(writeSequence);
+    }
+
+    // Update a stage that moves a number of bytes, like a download
+    public void updateBytes(JobStage stage, long doneBytes, long totalBytes) {
+        var writeSequence = beginWrite();
+        setStage(stage);
+        if (startBytes < 0) {
+            startBytes = doneBytes;
+        }
+        this.doneBytes = doneBytes;
+        this.totalBytes = totalBytes;
+        endWrite(writeSequence);
+    }
+
+    // Update a stage that works through the length of the media, like an encode
+    public void updateTime(JobStage stage, long doneMillis, long totalMillis) {
+        var writeSequence = beginWrite();
+        setStage(stage);
+        this.doneMillis = doneMillis;
+        this.totalMillis = totalMillis;
+        endWrite(writeSequence);
+    }
+
+    // Store the statistics of the encoder, returns the number of frames encoded since the last update
+    public long updateEncoder(long frames, double fps, double speed) {
+        var writeSequence = beginWrite();
+        var addedFrames = Math.max(0, frames - this.frames);
+        this.frames = frames;
+        this.fps = fps;
+        this.speed = speed;
+        endWrite(writeSequence);
+        return addedFrames;
+    }
+
+    // Start over with empty counters when the stage changes, called while writing
+    private void setStage(JobStage stage) {
+        if (stage != this.stage) {
+            this.stage = stage;
+            stageStartNanos = System.nanoTime();
+            startBytes = -1;
+            doneBytes = 0;
+            totalBytes = 0;
+            doneMillis = 0;
+            totalMillis = 0;
+        }
+    }
+
+    // Make the sequence odd, waiting for an update from another thread to finish first
+    private long beginWrite() {
+        long current;
+        while (((current = sequence.get()) & 1) != 0 || !sequence.compareAndSet(current, current + 1)) {
+            Thread.onSpinWait();
+        }
+
+        return current + 1;
+    }
+
+    private void endWrite(long writeSequence) {
+        sequence.set(writeSequence + 1);
+    }
+
+    private Snapshot read() {
+        var snapshot = new Snapshot();
+        while (true) {
+            var readSequence = sequence.get();
+            if ((readSequence & 1) == 0) {
+                snapshot.stage = stage;
+                snapshot.stageStartNanos = stageStartNanos;
+                snapshot.startBytes = startBytes;
+                snapshot.doneBytes = doneBytes;
+                snapshot.totalBytes = totalBytes;
+                snapshot.doneMillis = doneMillis;
+                snapshot.totalMillis = totalMillis;
+                snapshot.frames = frames;
+                snapshot.fps = fps;
+                snapshot.speed = speed;
+
+                // The values must have been read before the sequence is checked again
+                VarHandle.acquireFence();
+                if (sequence.get() == readSequence) {
+                    return snapshot;
+                }
+            }
+
+            Thread.onSpinWait();
+        }
+    }
+
+    public JobStage getStage() {
+        return read().stage;
+    }
+
+    // The percentage of the current stage, or -1 if the stage does not report one
+    public double getPercent() {
+        return read().getPercent();
+    }
+
+    public double getFps() {
+        return read().fps;
+    }
+
+    public double getSpeed() {
+        return read().speed;
+    }
+
+    // Estimate the seconds left in a stage from how fast it has progressed so far
+    private static Long getEtaSeconds(Snapshot snapshot) {
+        var percent = snapshot.getPercent();
+        if (percent <= 0 || percent >= 100) {
+            return null;
+        }
+
+        var elapsedSeconds = (System.nanoTime() - snapshot.stageStartNanos) / 1e9;
+        return Math.round(elapsedSeconds * (100 - percent) / percent);
+    }
+
+    // The report for the bot, the free text is left out until the report is actually sent
+    public WorkProgress toReport(Integer workItemId) {
+        var snapshot = read();
+        var percent = snapshot.getPercent();
+
+        var report = new WorkProgress();
+        report.workItemId = workItemId;
+        report.stage = snapshot.stage.name().toLowerCase(Locale.ROOT);
+        report.percent = percent >= 0 ? percent : null;
+        report.etaSeconds = getEtaSeconds(snapshot);
+        if (snapshot.stage == JobStage.ENCODING) {
+            report.fps = snapshot.fps;
+            report.speed = snapshot.speed;
+        } else if (snapshot.totalBytes > 0) {
+            report.bytesPerSecond = snapshot.getBytesPerSecond();
+        }
+
+        return report;
+    }
+
+    // The progress as the free text that older versions of the bot display, with the percentage to two decimals
+    public static String toText(String stageName, Double percent) {
+        var label = JobStage.valueOf(stageName.toUpperCase(Locale.ROOT)).getLabel();
+        if (percent == null) {
+            return label;
+        }
+
+        var hundredths = Math.round(percent * 100);
+        var text = new StringBuilder(label.length() + 10).append(label);
+        if (!label.isEmpty()) {
+            text.append(": ");
+        }
+
+        text.append(hundredths / 100).append('.');
+        if (hundredths % 100 < 10) {
+            text.append('0');
+        }
+
+        return text.append(hundredths % 100).append('%').toString();
+    }
+}
@@ -0,0 +1,134 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
+import net.celestialdata.plexbotencoder.storage.StorageReservation;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobSlot {
+    private final int index;
+    private final AtomicBoolean active = new AtomicBoolean(false);
+    private volatile WorkItem workItem = new WorkItem();
+    private volatile JobProgress progress = new JobProgress();
+    private final AtomicInteger failCount = new AtomicInteger();
+    private volatile JobJournal journal;
+    private volatile StorageReservation reservation;
+    private String tempFilePath = "";
+    private String outputFilePath = "";
+
+    public JobSlot(int index) {
+        this.index = index;
+    }
+
+    // Reserve this slot for a new job, returns false if the slot is already in use
+    public boolean tryAcquire() {
+        return active.compareAndSet(false, true);
+    }
+
+    // Mark the slot as free, clear the information about the last job and give back its temp space
+    public void release() {
+        if (reservation != null) {
+            reservation.release();
+            reservation = null;
+        }
+
+        workItem = new WorkItem();
+        progress = new JobProgress();
+        journal = null;
+        tempFilePath = "";
+        outputFilePath = "";
+        active.set(false);
+    }
+
+    public boolean isActive() {
+        return active.get();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public WorkItem getWorkItem() {
+        return workItem;
+    }
+
+    public void setWorkItem(WorkItem workItem) {
+        this.workItem = workItem;
+    }
+
+    public void setProgress(JobStage stage) {
+        progress.update(stage);
+    }
+
+    public void setByteProgress(JobStage stage, long doneBytes, long totalBytes) {
+        progress.updateBytes(stage, doneBytes, totalBytes);
+    }
+
+    public void setTimeProgress(JobStage stage, long doneMillis, long totalMillis) {
+        progress.updateTime(stage, doneMillis, totalMillis);
+    }
+
+    // The progress of the job for the bot, including the encoder statistics while encoding
+    public WorkProgress getProgressReport() {
+        return progress.toReport(workItem.id);
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(JobJournal journal) {
+        this.journal = journal;
+    }
+
+    public StorageReservation getReservation() {
+        return reservation;
+    }
+
+    public void setReservation(StorageReservation reservation) {
+        this.reservation = reservation;
+    }
+
+    public double getEncodeFps() {
+        return progress.getFps();
+    }
+
+    public double getEncodeSpeed() {
+        return progress.getSpeed();
+    }
+
+    // Returns the number of frames encoded since the last update
+    public long setEncodeStats(double fps, double speed, long frames) {
+        return progress.updateEncoder(frames, fps, speed);
+    }
+
+    public int getFailCount() {
+        return failCount.get();
+    }
+
+    public void recordFailure() {
+        failCount.incrementAndGet();
+    }
+
+    public void recordSuccess() {
+        failCount.set(0);
+    }
+
+    public String getTempFilePath() {
+        return tempFilePath;
+    }
+
+    public void setTempFilePath(String tempFilePath) {
+        this.tempFilePath = tempFilePath;
+    }
+
+    public String getOutputFilePath() {
+        return outputFilePath;
+    }
+
+    public void setOutputFilePath(String outputFilePath) {
+        this.outputFilePath = outputFilePath;
+    }
+}
@@ -0,0 +1,25 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+// The stages a job goes through, along with how each stage is shown in the work queue of the bot
+public enum JobStage {
+    LOADING("loading media"),
+    PREFETCHING("prefetching file"),
+    WAITING("waiting for a free slot"),
+    WAITING_FOR_SPACE("waiting for disk space"),
+    DOWNLOADING("downloading file"),
+    PROBING("gathering information"),
+    ENCODING(""),
+    JOINING("joining segments"),
+    UPLOADING("uploading"),
+    CLEANING_UP("cleaning up");
+
+    private final String label;
+
+    JobStage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,86 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
+import net.celestialdata.plexbotencoder.storage.StorageReservation;
+
+import java.util.concurrent.CompletableFuture;
+
+// A job that has been claimed ahead of time so its source can be downloaded while the job slots are busy
+public class PrefetchedJob {
+    private final WorkItem workItem;
+    private final JobProgress progress = new JobProgress();
+    private volatile JobJournal journal;
+    private volatile StorageReservation reservation;
+    private volatile JobSlot slot;
+    private volatile CompletableFuture<Void> download = CompletableFuture.completedFuture(null);
+
+    public PrefetchedJob(WorkItem workItem) {
+        this.workItem = workItem;
+    }
+
+    public WorkItem getWorkItem() {
+        return workItem;
+    }
+
+    public void setProgress(JobStage stage) {
+        progress.update(stage);
+    }
+
+    // Once a slot has taken over the job, a download that is still running is shown as the download of the slot
+    public void setByteProgress(JobStage stage, long doneBytes, long totalBytes) {
+        var currentSlot = slot;
+        if (currentSlot != null) {
+            currentSlot.setByteProgress(JobStage.DOWNLOADING, doneBytes, totalBytes);
+        } else {
+            progress.updateBytes(stage, doneBytes, totalBytes);
+        }
+    }
+
+    public WorkProgress getProgressReport() {
+        return progress.toReport(workItem.id);
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(JobJournal journal) {
+        this.journal = journal;
+    }
+
+    public StorageReservation getReservation() {
+        return reservation;
+    }
+
+    public void setReservation(StorageReservation reservation) {
+        this.reservation = reservation;
+    }
+
+    // The size of the source on disk, or 0 while it is not known yet
+    public long getSourceSize() {
+        var currentJournal = journal;
+        return currentJournal != null ? Math.max(0, currentJournal.getDownloadState().getTotalBytes()) : 0;
+    }
+
+    public void setDownload(CompletableFuture<Void> download) {
+        this.download = download;
+    }
+
+    // Hand the job to the slot that runs it. The job is no longer reported on its own, so the slot takes over the
+    // progress of the download right away instead of showing it as loading until the download ends.
+    public void handOver(JobSlot jobSlot) {
+        slot = jobSlot;
+
+        var currentJournal = journal;
+        if (!download.isDone() && currentJournal != null && currentJournal.getStage() == JobJournal.Stage.DOWNLOADING) {
+            var state = currentJournal.getDownloadState();
+            jobSlot.setByteProgress(JobStage.DOWNLOADING, state.getReceivedBytes(), state.getTotalBytes());
+        }
+    }
+
+    // Wait until the prefetch has either finished or given up
+    public void awaitDownload() {
+        download.join();
+    }
+}
@@ -0,0 +1,188 @@
+package net.celestialdata.plexbotencoder.jobs;
+
+import net.celestialdata.plexbotencoder.clients.models.WorkProgress;
+import net.celestialdata.plexbotencoder.clients.services.WorkService;
+import net.celestialdata.plexbotencoder.utilities.NamedThreadFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+// Sends the progress of the jobs of this worker to the bot. Only meaningful changes are sent, all jobs
+// go out in a single request, and the reporter backs off while the bot is returning errors. Every report
+// also renews the lease of the job it belongs to. The requests go out on a thread of their own, so a slow bot
+// never holds up the scheduler.
+@ApplicationScoped
+public class ProgressReporter {
+    private static final Logger logger = Logger.getLogger(ProgressReporter.class);
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Map<Integer, SentReport> sentReports = new HashMap<>();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private ExecutorService executor;
+    private boolean batchSupported = true;
+    private int consecutiveErrors = 0;
+    private boolean backingOff = false;
+    private long backoffUntilNanos;
+
+    @ConfigProperty(name = "AppSettings.progressReportInterval", defaultValue = "5")
+    int reportInterval;
+
+    @ConfigProperty(name = "AppSettings.progressMinimumChange", defaultValue = "1")
+    double minimumChange;
+
+    @ConfigProperty(name = "AppSettings.leaseDuration", defaultValue = "300")
+    int leaseDuration;
+
+    @Inject
+    @RestClient
+    WorkService workService;
+
+    private static class SentReport {
+        final String stage;
+        final Double percent;
+        final long sentAtNanos;
+
+        SentReport(WorkProgress report, long sentAtNanos) {
+            this.stage = report.stage;
+            this.percent = report.percent;
+            this.sentAtNanos = sentAtNanos;
+        }
+    }
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("progress-reporter", true));
+    }
+
+    @PreDestroy
+    void destroy() {
+        executor.shutdownNow();
+    }
+
+    // Hand the reports over to the reporter thread. While the previous reports are still being sent these are dropped,
+    // the next reports carry the same jobs with newer progress anyway.
+    public void report(List<WorkProgress> reports) {
+        if (!sending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    sendChanges(reports);
+                } finally {
+                    sending.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sending.set(false);
+        }
+    }
+
+    private synchronized void sendChanges(List<WorkProgress> reports) {
+        // nanoTime can have any origin, even a negative one, so the end of the backoff only counts after a failure
+        var now = System.nanoTime();
+        if (backingOff && now - backoffUntilNanos < 0) {
+            return;
+        }
+
+        // Forget the jobs that are no longer running
+        var activeIds = reports.stream().map(report -> report.workItemId).collect(Collectors.toSet());
+        sentReports.keySet().retainAll(activeIds);
+
+        var changedReports = reports.stream()
+                .filter(report -> isMeaningfulChange(report, now))
+                .collect(Collectors.toList());
+        if (changedReports.isEmpty()) {
+            return;
+        }
+
+        try {
+            send(changedReports);
+            changedReports.forEach(report -> sentReports.put(report.workItemId, new SentReport(report, now)));
+            consecutiveErrors = 0;
+            backingOff = false;
+        } catch (Exception e) {
+            consecutiveErrors += 1;
+
+            // Double the wait after every failure, with some jitter so a fleet of workers does not retry in step. The
+            // wait never grows past the heartbeat, so the leases are still renewed before they run out.
+            var maximumBackoff = getHeartbeatNanos();
+            var backoff = Math.min(maximumBackoff, TimeUnit.SECONDS.toNanos(reportInterval) << Math.min(consecutiveErrors - 1, 16));
+            backoff = Math.min(maximumBackoff, backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1));
+            backoffUntilNanos = now + backoff;
+            backingOff = true;
+
+            var reason = e instanceof WebApplicationException ?
+                    "server returned a " + ((WebApplicationException) e).getResponse().getStatus() + " error code" : e.getMessage();
+            logger.warn("Failed to update the job progress, " + reason + ". Retrying in " + TimeUnit.NANOSECONDS.toSeconds(backoff) + " seconds");
+        }
+    }
+
+    // A report is sent when the stage changes, when the percentage moved far enough since the last report
+    // and the minimum interval has passed, or as a heartbeat when nothing has been sent for a while. The heartbeat
+    // also renews the lease of the job, so it is sent at least three times per lease.
+    private boolean isMeaningfulChange(WorkProgress report, long now) {
+        var sentReport = sentReports.get(report.workItemId);
+        if (sentReport == null || !sentReport.stage.equals(report.stage)) {
+            return true;
+        }
+
+        var sinceLastReport = now - sentReport.sentAtNanos;
+        if (sinceLastReport >= getHeartbeatNanos()) {
+            return true;
+        }
+
+        if (sinceLastReport < TimeUnit.SECONDS.toNanos(reportInterval) || report.percent == null) {
+            return false;
+        }
+
+        return sentReport.percent == null || Math.abs(report.percent - sentReport.percent) >= minimumChange;
+    }
+
+    private long getHeartbeatNanos() {
+        return Math.min(HEARTBEAT_NANOS, TimeUnit.SECONDS.toNanos(leaseDuration) / 3);
+    }
+
+    private void send(List<WorkProgress> reports) {
+        // The text is only formatted for the reports that actually go out
+        reports.forEach(report -> report.progress = JobProgress.toText(report.stage, report.percent));
+
+        if (batchSupported) {
+            try {
+                workService.updateProgress(reports);
+                return;
+            } catch (WebApplicationException e) {
+                var status = e.getResponse().getStatus();
+                if (status != 404 && status != 405) {
+                    throw e;
+                }
+
+                // Older versions of the bot only accept the progress text of one job at a time. They do not lease
+                // jobs either, so there is no lease to renew on this path.
+                logger.info("The bot does not support batched progress updates, sending them one job at a time");
+                batchSupported = false;
+            }
+        }
+
+        for (WorkProgress report : reports) {
+            workService.update(report.workItemId, report.progress);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package net.celestialdata.plexbotencoder.metrics;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpegProgress;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.celestialdata.plexbotencoder.jobs.JobSlot;
+import net.celestialdata.plexbotencoder.storage.TempStorage;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// The metrics of every stage of the encoding pipeline, these are served in the Prometheus format at /q/metrics
+@ApplicationScoped
+public class PipelineMetrics {
+    private static final Logger logger = Logger.getLogger(PipelineMetrics.class);
+
+    private Counter downloadedBytes;
+    private Counter uploadedBytes;
+    private Counter encodedFrames;
+    private Counter completedJobs;
+    private Counter failedJobs;
+    private Timer queueClaimTimer;
+    private Counter metadataHits;
+    private Counter metadataMisses;
+    private Counter metadataRequests;
+
+    @Inject
+    MeterRegistry registry;
+
+    @PostConstruct
+    void registerMeters() {
+        downloadedBytes = Counter.builder("plexbot.download.bytes")
+                .description("Bytes downloaded from the bot")
+                .baseUnit("bytes")
+                .register(registry);
+        uploadedBytes = Counter.builder("plexbot.upload.bytes")
+                .description("Bytes uploaded to the bot")
+                .baseUnit("bytes")
+                .register(registry);
+        encodedFrames = Counter.builder("plexbot.encode.frames")
+                .description("Video frames encoded")
+                .register(registry);
+        completedJobs = Counter.builder("plexbot.jobs.completed")
+                .description("Jobs that finished successfully")
+                .register(registry);
+        failedJobs = Counter.builder("plexbot.jobs.failed")
+                .description("Jobs and job fetches that failed")
+                .register(registry);
+        queueClaimTimer = Timer.builder("plexbot.queue.claim.duration")
+                .description("Time taken to claim the next job from the bot")
+                .publishPercentileHistogram()
+                .register(registry);
+        metadataHits = Counter.builder("plexbot.metadata.lookups")
+                .description("Movie and episode lookups, by whether the cache could answer them")
+                .tag("result", "hit")
+                .register(registry);
+        metadataMisses = Counter.builder("plexbot.metadata.lookups")
+                .description("Movie and episode lookups, by whether the cache could answer them")
+                .tag("result", "miss")
+                .register(registry);
+        metadataRequests = Counter.builder("plexbot.metadata.requests")
+                .description("Requests sent to the bot for movie and episode information, lookups minus requests are the round trips saved")
+                .register(registry);
+    }
+
+    public void registerSlot(JobSlot slot) {
+        var slotTag = String.valueOf(slot.getIndex());
+        Gauge.builder("plexbot.encode.fps", slot, JobSlot::getEncodeFps)
+                .description("Frames per second of the running encode")
+                .tag("slot", slotTag)
+                .register(registry);
+        Gauge.builder("plexbot.encode.speed", slot, JobSlot::getEncodeSpeed)
+                .description("Speed of the running encode as a multiple of real time")
+                .tag("slot", slotTag)
+                .register(registry);
+        Gauge.builder("plexbot.slot.failures", slot, JobSlot::getFailCount)
+                .description("Consecutive failures of a job slot, the worker restarts when one reaches 20")
+                .tag("slot", slotTag)
+                .register(registry);
+    }
+
+    public void registerTempStorage(TempStorage storage) {
+        Gauge.builder("plexbot.temp.folder.used", storage, PipelineMetrics::getTempFolderUsage)
+                .description("Bytes used by the files in the temp folders")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("plexbot.temp.folder.free", storage, PipelineMetrics::getTempFolderFreeSpace)
+                .description("Bytes available to the temp folders")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("plexbot.temp.folder.reserved", storage, TempStorage::getReservedBytes)
+                .description("Bytes of the temp folders reserved for the sources and outputs of the running jobs")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void registerMetadataCache(Map<?, ?> cache) {
+        Gauge.builder("plexbot.metadata.cache.size", cache, Map::size)
+                .description("Movies and episodes held in the metadata cache")
+                .register(registry);
+    }
+
+    // Record how long a stage of a job took, the stages are download, analyze, probe, encode or remux, and upload
+    public void recordStage(String stage, long startNanos) {
+        Timer.builder("plexbot.stage.duration")
+                .description("Time taken by each stage of a job")
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T timeQueueClaim(Supplier<T> claim) {
+        return queueClaimTimer.record(claim);
+    }
+
+    public void recordDownloadedBytes(long bytes) {
+        downloadedBytes.increment(bytes);
+    }
+
+    public void recordUploadedBytes(long bytes) {
+        uploadedBytes.increment(bytes);
+    }
+
+    // Count a transfer whose checksum did not match the one of the bot, the direction is download or upload
+    public void recordChecksumMismatch(String direction) {
+        Counter.builder("plexbot.transfer.checksum.mismatches")
+                .description("Transfers that were damaged on the way, found by comparing checksums with the bot")
+                .tag("direction", direction)
+                .register(registry)
+                .increment();
+    }
+
+    // Keep the encoder statistics of a slot current and count the frames encoded since the last update
+    public void recordEncodeProgress(JobSlot slot, FFmpegProgress progress) {
+        var frames = progress.getFrame() != null ? progress.getFrame() : 0;
+        var addedFrames = slot.setEncodeStats(progress.getFps() != null ? progress.getFps() : 0,
+                progress.getSpeed() != null ? progress.getSpeed() : 0, frames);
+        if (addedFrames > 0) {
+            encodedFrames.increment(addedFrames);
+        }
+    }
+
+    public void recordMetadataLookups(int hits, int misses) {
+        metadataHits.increment(hits);
+        metadataMisses.increment(misses);
+    }
+
+    public void recordMetadataRequest() {
+        metadataRequests.increment();
+    }
+
+    public void recordJobCompleted() {
+        completedJobs.increment();
+    }
+
+    public void recordJobFailed() {
+        failedJobs.increment();
+    }
+
+    // Count the bytes of a download as they are read
+    public InputStream countDownload(InputStream inputStream) {
+        return new CountingStream(inputStream, downloadedBytes);
+    }
+
+    private static double getTempFolderUsage(TempStorage storage) {
+        try {
+            return storage.getUsedBytes();
+        } catch (Exception e) {
+            // Files can be deleted while the folder is measured
+            logger.debug("Failed to measure the temp folders", e);
+            return Double.NaN;
+        }
+    }
+
+    private static double getTempFolderFreeSpace(TempStorage storage) {
+        try {
+            return storage.getFreeBytes();
+        } catch (IOException e) {
+            logger.debug("Failed to read the free space of the temp folders", e);
+            return Double.NaN;
+        }
+    }
+
+    private static class CountingStream extends ProxyInputStream {
+        private final Counter counter;
+
+        CountingStream(InputStream inputStream, Counter counter) {
+            super(inputStream);
+            this.counter = counter;
+        }
+
+        @Override
+        protected void afterRead(int n) {
+            if (n > 0) {
+                counter.increment(n);
+            }
+        }
+    }
+}
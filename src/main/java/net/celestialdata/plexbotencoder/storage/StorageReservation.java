@@ -0,0 +1,75 @@
+package net.celestialdata.plexbotencoder.storage;
+
+import net.celestialdata.plexbotencoder.transfer.DownloadState;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// The space set aside in the temp folders for the source and the output of one job. The files of the job are
+// registered once their paths are known, so the bytes they already take up on disk are not counted twice.
+// A source that is downloaded in parallel parts is allocated at its full length before the parts arrive, so its
+// written bytes are taken from the download instead of from the length of the file.
+public class StorageReservation {
+    private final TempStorage storage;
+    private final Path sourceFolder;
+    private final long sourceBytes;
+    private final Path outputFolder;
+    private final long outputBytes;
+    private volatile Path sourceFile;
+    private volatile Path outputFile;
+    private volatile DownloadState sourceDownload;
+
+    StorageReservation(TempStorage storage, Path sourceFolder, long sourceBytes, Path outputFolder, long outputBytes) {
+        this.storage = storage;
+        this.sourceFolder = sourceFolder;
+        this.sourceBytes = sourceBytes;
+        this.outputFolder = outputFolder;
+        this.outputBytes = outputBytes;
+    }
+
+    public Path getSourceFolder() {
+        return sourceFolder;
+    }
+
+    public Path getOutputFolder() {
+        return outputFolder;
+    }
+
+    public long getBytes() {
+        return sourceBytes + outputBytes;
+    }
+
+    public void setFiles(Path sourceFile, Path outputFile) {
+        this.sourceFile = sourceFile;
+        this.outputFile = outputFile;
+    }
+
+    public void setSourceDownload(DownloadState sourceDownload) {
+        this.sourceDownload = sourceDownload;
+    }
+
+    // The reserved bytes of the source that have not been written yet
+    long getUnwrittenSourceBytes() {
+        var download = sourceDownload;
+        var writtenBytes = download != null ? download.getReceivedBytes() : getSize(sourceFile);
+        return Math.max(0, sourceBytes - writtenBytes);
+    }
+
+    long getUnwrittenOutputBytes() {
+        return Math.max(0, outputBytes - getSize(outputFile));
+    }
+
+    private static long getSize(Path file) {
+        try {
+            return file != null ? Files.size(file) : 0;
+        } catch (IOException e) {
+            // The file has not been created yet or was just deleted
+            return 0;
+        }
+    }
+
+    public void release() {
+        storage.release(this);
+    }
+}
@@ -0,0 +1,270 @@
+package net.celestialdata.plexbotencoder.storage;
+
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Hands out the space of the temp folders to the jobs. A job reserves the space for its source and its output
+// before anything is downloaded, and waits while the folders are full instead of failing halfway through the
+// download. The jobs are spread over the temp folder and the scratch folders in turn, and the output of a job is
+// put on another folder than its source when there is room, so the encoder reads from one disk and writes to another.
+@ApplicationScoped
+public class TempStorage {
+    private static final Logger logger = Logger.getLogger(TempStorage.class);
+
+    // Files outside of this worker can free up space too, so a waiting job checks again every now and then
+    private static final long RECHECK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final List<Path> folders = new ArrayList<>();
+    private final List<FileStore> stores = new ArrayList<>();
+    private final List<StorageReservation> reservations = new ArrayList<>();
+    private int nextFolder = 0;
+
+    @ConfigProperty(name = "AppSettings.tempFolder")
+    String tempFolder;
+
+    @ConfigProperty(name = "AppSettings.scratchFolders")
+    Optional<List<String>> scratchFolders;
+
+    @ConfigProperty(name = "AppSettings.tempDiskBudget", defaultValue = "0")
+    long diskBudget;
+
+    @ConfigProperty(name = "AppSettings.tempFreeSpaceReserve", defaultValue = "1073741824")
+    long freeSpaceReserve;
+
+    @ConfigProperty(name = "AppSettings.outputSizeEstimate", defaultValue = "100")
+    int outputSizeEstimate;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @PostConstruct
+    void init() {
+        folders.add(Paths.get(tempFolder));
+        scratchFolders.ifPresent(scratch -> scratch.stream()
+                .filter(folder -> !folder.isBlank())
+                .map(Paths::get)
+                .filter(folder -> !folders.contains(folder))
+                .forEach(folders::add));
+
+        for (Path folder : folders) {
+            FileStore store = null;
+            try {
+                Files.createDirectories(folder);
+                store = Files.getFileStore(folder);
+            } catch (IOException e) {
+                logger.error("Unable to use the temp folder " + folder + ", no jobs are placed in it", e);
+            }
+
+            stores.add(store);
+        }
+
+        if (folders.size() > 1) {
+            logger.info("Spreading the files of the jobs over " + folders.size() + " temp folders: " + folders);
+        }
+
+        metrics.registerTempStorage(this);
+    }
+
+    public List<Path> getFolders() {
+        return folders;
+    }
+
+    // Guess the size of the output of a source, before it has been encoded
+    public long estimateOutputSize(long sourceBytes) {
+        return sourceBytes * outputSizeEstimate / 100;
+    }
+
+    // Reserve space for the files of a new job, waiting until there is room. Fails if the files do not fit
+    // in the temp folders even while no other job is holding any space.
+    public synchronized StorageReservation reserve(long sourceBytes, long outputBytes) throws IOException, InterruptedException {
+        var waiting = false;
+        while (true) {
+            var reservation = place(sourceBytes, outputBytes);
+            if (reservation != null) {
+                if (waiting) {
+                    logger.info("Reserved " + FileUtils.byteCountToDisplaySize(reservation.getBytes()) + " of temp space after waiting for it");
+                }
+
+                return reservation;
+            }
+
+            if (reservations.isEmpty()) {
+                throw new IOException("There is not enough free space in the temp folders for a source of " +
+                        FileUtils.byteCountToDisplaySize(sourceBytes) + " and an output of " + FileUtils.byteCountToDisplaySize(outputBytes));
+            }
+
+            if (!waiting) {
+                logger.info("Waiting for " + FileUtils.byteCountToDisplaySize(sourceBytes + outputBytes) + " of temp space, " +
+                        FileUtils.byteCountToDisplaySize(getReservedBytes()) + " is reserved by other jobs");
+                waiting = true;
+            }
+
+            wait(RECHECK_MILLIS);
+        }
+    }
+
+    // Reserve space for the files of a new job only if there is room right away
+    public synchronized Optional<StorageReservation> tryReserve(long sourceBytes, long outputBytes) {
+        return Optional.ofNullable(place(sourceBytes, outputBytes));
+    }
+
+    // Take over the files left behind by an earlier run or a prefetch. Part of the space is already in use,
+    // so these files are never made to wait.
+    public synchronized StorageReservation reserveExisting(Path sourceFile, Path outputFile, long sourceBytes, long outputBytes) {
+        var reservation = new StorageReservation(this, getFolderOf(sourceFile), sourceBytes, getFolderOf(outputFile), outputBytes);
+        reservation.setFiles(sourceFile, outputFile);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    synchronized void release(StorageReservation reservation) {
+        if (reservations.remove(reservation)) {
+            notifyAll();
+        }
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservations.stream().mapToLong(StorageReservation::getBytes).sum();
+    }
+
+    // Bytes used by the files in all temp folders
+    public long getUsedBytes() {
+        var usedBytes = 0L;
+        for (Path folder : folders) {
+            usedBytes += FileUtils.sizeOfDirectory(folder.toFile());
+        }
+
+        return usedBytes;
+    }
+
+    // Bytes available to all temp folders, counting every disk once
+    public long getFreeBytes() throws IOException {
+        var freeBytes = 0L;
+        var countedStores = new ArrayList<FileStore>();
+        for (FileStore store : stores) {
+            if (store != null && !countedStores.contains(store)) {
+                freeBytes += store.getUsableSpace();
+                countedStores.add(store);
+            }
+        }
+
+        return freeBytes;
+    }
+
+    // Find a folder for the source, starting after the folder of the last job, and a folder for the output,
+    // preferring the folders after the one of the source
+    private StorageReservation place(long sourceBytes, long outputBytes) {
+        // A job that is larger than the whole budget can still run, as long as it runs on its own
+        if (diskBudget > 0 && !reservations.isEmpty() && getReservedBytes() + sourceBytes + outputBytes > diskBudget) {
+            return null;
+        }
+
+        var available = new long[folders.size()];
+        for (int i = 0; i < folders.size(); i++) {
+            available[i] = getAvailableBytes(i);
+        }
+
+        for (int offset = 0; offset < folders.size(); offset++) {
+            var sourceIndex = (nextFolder + offset) % folders.size();
+            if (available[sourceIndex] < sourceBytes) {
+                continue;
+            }
+
+            // Folders on the same disk share their space
+            for (int i = 0; i < folders.size(); i++) {
+                if (isSameStore(i, sourceIndex)) {
+                    available[i] -= sourceBytes;
+                }
+            }
+
+            for (int outputOffset = 1; outputOffset <= folders.size(); outputOffset++) {
+                var outputIndex = (sourceIndex + outputOffset) % folders.size();
+                if (available[outputIndex] >= outputBytes) {
+                    nextFolder = (sourceIndex + 1) % folders.size();
+
+                    var reservation = new StorageReservation(this, folders.get(sourceIndex), sourceBytes, folders.get(outputIndex), outputBytes);
+                    reservations.add(reservation);
+                    return reservation;
+                }
+            }
+
+            for (int i = 0; i < folders.size(); i++) {
+                if (isSameStore(i, sourceIndex)) {
+                    available[i] += sourceBytes;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // The usable space of the disk of a folder, minus what has been promised to jobs but not written yet
+    // and the space that is always kept free
+    private long getAvailableBytes(int folderIndex) {
+        var store = stores.get(folderIndex);
+        if (store == null) {
+            return Long.MIN_VALUE;
+        }
+
+        long usableBytes;
+        try {
+            usableBytes = store.getUsableSpace();
+        } catch (IOException e) {
+            logger.debug("Failed to read the free space of " + folders.get(folderIndex), e);
+            return Long.MIN_VALUE;
+        }
+
+        var promisedBytes = 0L;
+        for (StorageReservation reservation : reservations) {
+            if (store.equals(getStoreOf(reservation.getSourceFolder()))) {
+                promisedBytes += reservation.getUnwrittenSourceBytes();
+            }
+
+            if (store.equals(getStoreOf(reservation.getOutputFolder()))) {
+                promisedBytes += reservation.getUnwrittenOutputBytes();
+            }
+        }
+
+        return usableBytes - promisedBytes - freeSpaceReserve;
+    }
+
+    private boolean isSameStore(int first, int second) {
+        return stores.get(first) != null && stores.get(first).equals(stores.get(second));
+    }
+
+    private FileStore getStoreOf(Path folder) {
+        var index = folders.indexOf(folder);
+        return index >= 0 ? stores.get(index) : null;
+    }
+
+    // The innermost configured folder that holds a file, files outside of them count as being in the temp folder
+    private Path getFolderOf(Path file) {
+        var normalizedFile = file.toAbsolutePath().normalize();
+        var match = folders.get(0);
+        var matchDepth = -1;
+        for (Path folder : folders) {
+            var normalizedFolder = folder.toAbsolutePath().normalize();
+            if (normalizedFile.startsWith(normalizedFolder) && normalizedFolder.getNameCount() > matchDepth) {
+                match = folder;
+                matchDepth = normalizedFolder.getNameCount();
+            }
+        }
+
+        return match;
+    }
+}
@@ -0,0 +1,124 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import java.net.http.HttpHeaders;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+// CRC32C checksums of transferred files, exchanged with the bot in Repr-Digest headers (RFC 9530). A CRC can be
+// continued from the checksums of the pieces of a file, so the parts of a parallel or resumed transfer are checked
+// as they stream by and put together afterwards, without reading the file a second time.
+public final class Checksums {
+    public static final String DIGEST_HEADER = "Repr-Digest";
+    public static final long UNKNOWN = -1;
+
+    private static final Pattern CRC32C_DIGEST = Pattern.compile("crc32c=:([A-Za-z0-9+/]+=*):");
+
+    // The CRC32C polynomial in reversed bit order
+    private static final long POLYNOMIAL = 0x82F63B78L;
+
+    private Checksums() {
+    }
+
+    // The checksum of two pieces of data one after the other, from the checksums of both pieces and the length
+    // of the second one. This runs the zeros of the second piece through the first CRC with matrix operations over
+    // GF(2), so it takes a few microseconds however long the pieces are.
+    public static long combine(long firstChecksum, long secondChecksum, long secondLength) {
+        if (firstChecksum == UNKNOWN || secondChecksum == UNKNOWN) {
+            return UNKNOWN;
+        }
+
+        if (secondLength <= 0) {
+            return firstChecksum;
+        }
+
+        var even = new long[32];
+        var odd = new long[32];
+
+        // The operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // The operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // Apply the operator for every set bit of the length in bytes, starting at one zero byte
+        var checksum = firstChecksum;
+        var length = secondLength;
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                checksum = times(even, checksum);
+            }
+
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length & 1) != 0) {
+                checksum = times(odd, checksum);
+            }
+
+            length >>= 1;
+        } while (length != 0);
+
+        return checksum ^ secondChecksum;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    public static String toDigest(long checksum) {
+        var bytes = ByteBuffer.allocate(4).putInt((int) checksum).array();
+        return "crc32c=:" + Base64.getEncoder().encodeToString(bytes) + ":";
+    }
+
+    // The CRC32C in a Repr-Digest header, or UNKNOWN if the header is missing or uses other algorithms
+    public static long fromDigest(String digest) {
+        if (digest == null) {
+            return UNKNOWN;
+        }
+
+        var matcher = CRC32C_DIGEST.matcher(digest);
+        if (!matcher.find()) {
+            return UNKNOWN;
+        }
+
+        try {
+            var bytes = Base64.getDecoder().decode(matcher.group(1));
+            return bytes.length == 4 ? Integer.toUnsignedLong(ByteBuffer.wrap(bytes).getInt()) : UNKNOWN;
+        } catch (IllegalArgumentException e) {
+            return UNKNOWN;
+        }
+    }
+
+    public static long fromHeaders(HttpHeaders headers) {
+        return fromDigest(headers.firstValue(DIGEST_HEADER).orElse(null));
+    }
+
+    public static Optional<String> describe(long checksum) {
+        return checksum == UNKNOWN ? Optional.empty() : Optional.of(String.format("%08x", checksum));
+    }
+}
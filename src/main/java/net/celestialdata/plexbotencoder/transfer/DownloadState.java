@@ -0,0 +1,113 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Keeps track of which parts of a download have been written to disk so an interrupted
+// download can be continued with range requests instead of starting over
+public class DownloadState {
+    private final List<Part> parts = new CopyOnWriteArrayList<>();
+    private volatile long totalBytes = -1;
+    private volatile long expectedChecksum = Checksums.UNKNOWN;
+
+    public static class Part {
+        private final long start;
+        private final long length;
+        private volatile long received;
+        private volatile long checksum;
+
+        public Part(long start, long length, long received) {
+            this(start, length, received, received == 0 ? 0 : Checksums.UNKNOWN);
+        }
+
+        public Part(long start, long length, long received, long checksum) {
+            this.start = start;
+            this.length = length;
+            this.received = received;
+            this.checksum = checksum;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        // The length of the part, or -1 if it runs until the end of a download of unknown size
+        public long getLength() {
+            return length;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        // The CRC32C of the received bytes of the part, or UNKNOWN for a part that was received by an older version
+        public long getChecksum() {
+            return checksum;
+        }
+
+        synchronized void addReceived(long bytes, long bytesChecksum) {
+            checksum = Checksums.combine(checksum, bytesChecksum, bytes);
+            received += bytes;
+        }
+
+        // A copy whose byte count and checksum belong together, for storing while the part is being written
+        public synchronized Part snapshot() {
+            return new Part(start, length, received, checksum);
+        }
+
+        public boolean isComplete() {
+            return length >= 0 && received >= length;
+        }
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public void addPart(Part part) {
+        parts.add(part);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    // The CRC32C of the whole file sent by the bot, or UNKNOWN if it did not send one
+    public long getExpectedChecksum() {
+        return expectedChecksum;
+    }
+
+    public void setExpectedChecksum(long expectedChecksum) {
+        this.expectedChecksum = expectedChecksum;
+    }
+
+    // The CRC32C of the whole file put together from the checksums of its parts
+    public long getChecksum() {
+        var checksum = 0L;
+        for (Part part : parts) {
+            var snapshot = part.snapshot();
+            checksum = Checksums.combine(checksum, snapshot.getChecksum(), snapshot.getReceived());
+        }
+
+        return checksum;
+    }
+
+    public long getReceivedBytes() {
+        return parts.stream().mapToLong(Part::getReceived).sum();
+    }
+
+    // A download can only be continued if its size and the layout of its parts are known
+    public boolean isResumable() {
+        return totalBytes > 0 && !parts.isEmpty() && parts.stream().allMatch(part -> part.getLength() >= 0);
+    }
+
+    public void reset() {
+        parts.clear();
+        totalBytes = -1;
+        expectedChecksum = Checksums.UNKNOWN;
+    }
+}
@@ -0,0 +1,129 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// The body of a request that sends a region of a file. The region is read straight from the file channel into
+// large buffers, only as fast as the HTTP client asks for them, and every buffer handed to the client is reported
+// to the listener. The HTTP client may subscribe more than once when it has to send the request again, every
+// subscription starts over at the beginning of the region. The checksum of the region is taken from the buffers
+// on their way out, so it is known once the whole region has been handed to the client.
+public class FileRegionPublisher implements HttpRequest.BodyPublisher {
+    private final FileChannel fileChannel;
+    private final long start;
+    private final long length;
+    private final int bufferSize;
+    private final LongConsumer listener;
+    private volatile long checksum = Checksums.UNKNOWN;
+
+    public FileRegionPublisher(FileChannel fileChannel, long start, long length, int bufferSize, LongConsumer listener) {
+        this.fileChannel = fileChannel;
+        this.start = start;
+        this.length = length;
+        this.bufferSize = bufferSize;
+        this.listener = listener;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    // The CRC32C of the region, or UNKNOWN until a subscription has read all of it
+    public long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new RegionSubscription(subscriber));
+    }
+
+    private class RegionSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private final CRC32C regionChecksum = new CRC32C();
+        private long position = start;
+        private volatile boolean cancelled = false;
+        private boolean finished = false;
+
+        RegionSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("The number of requested buffers must be positive, got " + n));
+                return;
+            }
+
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // Only one thread sends buffers at a time, a request made from inside onNext is picked up by the loop
+        private void drain() {
+            if (pendingDrains.getAndIncrement() != 0) {
+                return;
+            }
+
+            do {
+                while (!cancelled && !finished && demand.get() > 0) {
+                    if (position >= start + length) {
+                        finished = true;
+                        subscriber.onComplete();
+                        break;
+                    }
+
+                    ByteBuffer buffer;
+                    try {
+                        buffer = read();
+                    } catch (IOException e) {
+                        finished = true;
+                        subscriber.onError(e);
+                        break;
+                    }
+
+                    demand.decrementAndGet();
+                    regionChecksum.update(buffer.duplicate());
+                    if (position >= start + length) {
+                        checksum = regionChecksum.getValue();
+                    }
+
+                    listener.accept(buffer.remaining());
+                    subscriber.onNext(buffer);
+                }
+            } while (pendingDrains.decrementAndGet() != 0);
+        }
+
+        private ByteBuffer read() throws IOException {
+            var buffer = ByteBuffer.allocate((int) Math.min(bufferSize, start + length - position));
+            while (buffer.hasRemaining()) {
+                var read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file ended at " + position + " bytes before the upload was complete");
+                }
+
+                position += read;
+            }
+
+            return buffer.flip();
+        }
+    }
+}
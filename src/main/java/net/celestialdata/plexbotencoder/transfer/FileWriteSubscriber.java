@@ -0,0 +1,145 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// Writes a response body into the part of a file it belongs to. The small buffers handed out by the
+// HTTP client are collected into one large direct buffer so that the file is written in
+// big blocks instead of one system call per network read. The checksum of every block is taken
+// from the same buffer right before it is written.
+class FileWriteSubscriber implements HttpResponse.BodySubscriber<Long> {
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+    private final FileChannel fileChannel;
+    private final DownloadState.Part part;
+    private final ByteBuffer buffer;
+    private final CRC32C checksum = new CRC32C();
+    private final LongConsumer progressConsumer;
+    private final long limit;
+    private long position;
+    private long received = 0;
+    private Flow.Subscription subscription;
+
+    FileWriteSubscriber(FileChannel fileChannel, DownloadState.Part part, int bufferSize, LongConsumer progressConsumer) {
+        this.fileChannel = fileChannel;
+        this.part = part;
+        this.position = part.getStart() + part.getReceived();
+        this.limit = part.getLength() < 0 ? Long.MAX_VALUE : part.getLength() - part.getReceived();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.progressConsumer = progressConsumer;
+    }
+
+    @Override
+    public CompletionStage<Long> getBody() {
+        return result;
+    }
+
+    // Stop the response and give up on the rest of the body. A write that is in progress finishes first, so the
+    // file can be closed as soon as this returns.
+    synchronized void cancel() {
+        if (result.isDone()) {
+            return;
+        }
+
+        result.completeExceptionally(new IOException("The download was cancelled"));
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (result.isDone()) {
+            subscription.cancel();
+        } else {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> items) {
+        if (result.isDone()) {
+            return;
+        }
+
+        try {
+            for (ByteBuffer item : items) {
+                // Never write past the end of the range this subscriber is responsible for
+                if (item.remaining() > limit - received) {
+                    item.limit(item.position() + (int) (limit - received));
+                }
+
+                while (item.hasRemaining()) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+
+                    // Copy as much as fits into the write buffer
+                    var chunk = item.slice();
+                    chunk.limit(Math.min(chunk.remaining(), buffer.remaining()));
+                    buffer.put(chunk);
+                    item.position(item.position() + chunk.limit());
+                    received += chunk.limit();
+                }
+
+                if (received >= limit) {
+                    // The rest of the body is handled by other range requests
+                    flush();
+                    subscription.cancel();
+                    result.complete(received);
+                    return;
+                }
+            }
+
+            subscription.request(1);
+        } catch (IOException e) {
+            subscription.cancel();
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+
+        try {
+            flush();
+            result.complete(received);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        var written = buffer.remaining();
+
+        checksum.reset();
+        checksum.update(buffer.duplicate());
+
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+
+        buffer.clear();
+        if (written > 0) {
+            part.addReceived(written, checksum.getValue());
+            progressConsumer.accept(written);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+@ApplicationScoped
+public class MediaDownloader {
+    private static final Logger logger = Logger.getLogger(MediaDownloader.class);
+
+    @ConfigProperty(name = "AppSettings.downloadBufferSize", defaultValue = "4194304")
+    int bufferSize;
+
+    @ConfigProperty(name = "AppSettings.downloadConnections", defaultValue = "1")
+    int connections;
+
+    @ConfigProperty(name = "AppSettings.downloadMinimumPartSize", defaultValue = "67108864")
+    long minimumPartSize;
+
+    @ConfigProperty(name = "AppSettings.verifyChecksums", defaultValue = "true")
+    boolean verifyChecksums;
+
+    @Inject
+    TransferClient transferClient;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @FunctionalInterface
+    public interface DownloadListener {
+        void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    // Download the file of a media item into the destination, using parallel range requests when possible
+    public long download(String mediaType, int fileId, Path destination, DownloadListener listener) throws IOException, InterruptedException {
+        return download(mediaType, fileId, destination, new DownloadState(), listener);
+    }
+
+    // Download the file of a media item, continuing where the given state left off if it is resumable. When the bot sends
+    // the checksum of the file it is compared to the checksum taken while the file was written.
+    public long download(String mediaType, int fileId, Path destination, DownloadState state, DownloadListener listener) throws IOException, InterruptedException {
+        var downloaded = transfer(mediaType, fileId, destination, state, listener);
+        if (isIntact(mediaType, fileId, state)) {
+            return downloaded;
+        }
+
+        // The damaged bytes can be anywhere in the file, so it is downloaded once more from the start
+        logger.warn("The checksum of " + mediaType + " " + fileId + " does not match the one sent by the bot, downloading it again");
+        state.reset();
+        downloaded = transfer(mediaType, fileId, destination, state, listener);
+        if (!isIntact(mediaType, fileId, state)) {
+            throw new IOException("The checksum of " + mediaType + " " + fileId + " did not match the one sent by the bot after downloading it twice");
+        }
+
+        return downloaded;
+    }
+
+    // Download an encoded segment that another worker uploaded into the destination
+    public long downloadSegment(String mediaType, long mediaId, int index, Path destination) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var part = new DownloadState.Part(0, -1, 0);
+            var subscriber = new FileWriteSubscriber(fileChannel, part, bufferSize, metrics::recordDownloadedBytes);
+            try {
+                var response = transferClient.downloadSegmentAsync(mediaType, mediaId, index, responseInfo -> responseInfo.statusCode() >= 300 ?
+                        HttpResponse.BodySubscribers.replacing(0L) : subscriber).get();
+                if (response.statusCode() >= 300) {
+                    throw new WebApplicationException(response.statusCode());
+                }
+
+                var expected = Checksums.fromHeaders(response.headers());
+                if (verifyChecksums && expected != Checksums.UNKNOWN && expected != part.getChecksum()) {
+                    metrics.recordChecksumMismatch("download");
+                    throw new IOException("The checksum of segment " + (index + 1) + " of " + mediaType + " " + mediaId + " does not match the one sent by the bot");
+                }
+
+                return response.body();
+            } finally {
+                // Stop a response that is still being written before the file is closed, this does nothing once the
+                // whole body has been received
+                subscriber.cancel();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Compare the checksum of a finished download to the one the bot sent, a download without one is taken as intact
+    public boolean isIntact(String mediaType, int fileId, DownloadState state) {
+        var expected = state.getExpectedChecksum();
+        if (!verifyChecksums || expected == Checksums.UNKNOWN) {
+            return true;
+        }
+
+        var actual = state.getChecksum();
+        if (actual == Checksums.UNKNOWN) {
+            logger.debug("The download of " + mediaType + " " + fileId + " was continued from a journal without checksums, it can not be verified");
+            return true;
+        }
+
+        if (actual != expected) {
+            metrics.recordChecksumMismatch("download");
+            return false;
+        }
+
+        logger.debug("Verified the checksum " + Checksums.describe(actual).orElse("") + " of " + mediaType + " " + fileId);
+        return true;
+    }
+
+    private long transfer(String mediaType, int fileId, Path destination, DownloadState state, DownloadListener listener) throws IOException, InterruptedException {
+        if (state.isResumable() && Files.exists(destination)) {
+            try {
+                logger.info("Resuming the download of " + mediaType + " " + fileId + " at " + state.getReceivedBytes() + " of " + state.getTotalBytes() + " bytes");
+                return resume(mediaType, fileId, destination, state, listener);
+            } catch (RangeNotSupportedException e) {
+                logger.warn("The server did not honor a range request, restarting the download of " + mediaType + " " + fileId);
+            }
+        }
+
+        try {
+            state.reset();
+            return download(mediaType, fileId, destination, state, connections, listener);
+        } catch (RangeNotSupportedException e) {
+            logger.warn("The server did not honor a range request, retrying the download of " + mediaType + " " + fileId + " as a single stream");
+            state.reset();
+            return download(mediaType, fileId, destination, state, 1, listener);
+        }
+    }
+
+    // Write the rest of an already opened download into the destination, after the bytes the single part of the state
+    // has already received. The checksum of every block is taken right before it is written and added to the part.
+    public long download(InputStream source, Path destination, DownloadState state, DownloadListener listener) throws IOException {
+        var part = state.getParts().get(0);
+        var transferred = new AtomicLong(part.getReceived());
+        var buffer = new byte[Math.min(bufferSize, 1024 * 1024)];
+        var writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+        var checksum = new CRC32C();
+
+        try (var fileChannel = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = part.getStart() + part.getReceived();
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (read > writeBuffer.remaining()) {
+                    position += flush(fileChannel, writeBuffer, position, part, checksum, transferred, state.getTotalBytes(), listener);
+                }
+
+                writeBuffer.put(buffer, 0, read);
+            }
+
+            position += flush(fileChannel, writeBuffer, position, part, checksum, transferred, state.getTotalBytes(), listener);
+            fileChannel.truncate(position);
+        } finally {
+            source.close();
+        }
+
+        return transferred.get();
+    }
+
+    private long flush(FileChannel fileChannel, ByteBuffer writeBuffer, long position, DownloadState.Part part, CRC32C checksum,
+                       AtomicLong transferred, long totalBytes, DownloadListener listener) throws IOException {
+        writeBuffer.flip();
+        var written = writeBuffer.remaining();
+
+        checksum.reset();
+        checksum.update(writeBuffer.duplicate());
+
+        while (writeBuffer.hasRemaining()) {
+            position += fileChannel.write(writeBuffer, position);
+        }
+
+        writeBuffer.clear();
+        part.addReceived(written, checksum.getValue());
+        listener.onProgress(transferred.addAndGet(written), totalBytes);
+        return written;
+    }
+
+    private long download(String mediaType, int fileId, Path destination, DownloadState state, int connectionCount,
+                          DownloadListener listener) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var transfer = new Transfer(mediaType, fileId, fileChannel, state, connectionCount, listener);
+
+            // The response headers of the first request decide if the rest of the file is split into range requests
+            await(transfer, transferClient.downloadAsync(mediaType, fileId, null, transfer::startFirstPart));
+            return transfer.downloaded.get();
+        }
+    }
+
+    private long resume(String mediaType, int fileId, Path destination, DownloadState state, DownloadListener listener) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            var transfer = new Transfer(mediaType, fileId, fileChannel, state, state.getParts().size(), listener);
+            transfer.downloaded.set(state.getReceivedBytes());
+
+            // Request whatever is missing of every part that has not been completed yet
+            for (DownloadState.Part part : state.getParts()) {
+                if (!part.isComplete()) {
+                    transfer.parts.add(transfer.startPart(part));
+                }
+            }
+
+            await(transfer, CompletableFuture.completedFuture(null));
+            return transfer.downloaded.get();
+        }
+    }
+
+    private void await(Transfer transfer, CompletableFuture<? extends HttpResponse<?>> firstPart) throws IOException, InterruptedException {
+        try {
+            var response = firstPart.get();
+            if (response != null && response.statusCode() >= 300) {
+                throw new WebApplicationException(response.statusCode());
+            }
+
+            CompletableFuture.allOf(transfer.parts.toArray(new CompletableFuture[0])).join();
+        } catch (ExecutionException | CompletionException e) {
+            // Exceptions thrown by a body handler can end up wrapped by the HTTP client
+            for (var error = e.getCause(); error != null; error = error.getCause()) {
+                if (error instanceof RangeNotSupportedException) {
+                    throw (RangeNotSupportedException) error;
+                }
+            }
+
+            var cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException(cause);
+        } finally {
+            // Stop the responses that are still being written before the file is closed, when one part failed or the
+            // worker was interrupted while waiting. This does nothing once every part has been received.
+            transfer.cancel();
+        }
+    }
+
+    private class Transfer {
+        final List<CompletableFuture<?>> parts = new CopyOnWriteArrayList<>();
+        final List<FileWriteSubscriber> subscribers = new CopyOnWriteArrayList<>();
+        final AtomicLong downloaded = new AtomicLong();
+        final String mediaType;
+        final int fileId;
+        final FileChannel fileChannel;
+        final DownloadState state;
+        final int connectionCount;
+        final DownloadListener listener;
+        volatile boolean cancelled = false;
+
+        Transfer(String mediaType, int fileId, FileChannel fileChannel, DownloadState state, int connectionCount, DownloadListener listener) {
+            this.mediaType = mediaType;
+            this.fileId = fileId;
+            this.fileChannel = fileChannel;
+            this.state = state;
+            this.connectionCount = connectionCount;
+            this.listener = listener;
+        }
+
+        HttpResponse.BodySubscriber<Long> startFirstPart(HttpResponse.ResponseInfo responseInfo) {
+            if (responseInfo.statusCode() >= 300) {
+                return HttpResponse.BodySubscribers.replacing(0L);
+            }
+
+            var totalBytes = responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1);
+            var acceptsRanges = responseInfo.headers().firstValue("Accept-Ranges").map(value -> value.contains("bytes")).orElse(false);
+            state.setTotalBytes(totalBytes);
+            state.setExpectedChecksum(Checksums.fromHeaders(responseInfo.headers()));
+
+            // Fall back to a single stream when the server can not serve ranges or the file is too small to split
+            if (connectionCount <= 1 || !acceptsRanges || totalBytes < minimumPartSize * 2) {
+                var part = new DownloadState.Part(0, totalBytes, 0);
+                state.addPart(part);
+                return newSubscriber(part);
+            }
+
+            var partCount = (int) Math.min(connectionCount, totalBytes / minimumPartSize);
+            var partSize = (totalBytes + partCount - 1) / partCount;
+            for (int i = 0; i < partCount; i++) {
+                var start = i * partSize;
+                state.addPart(new DownloadState.Part(start, Math.min(totalBytes, start + partSize) - start, 0));
+            }
+
+            try {
+                // Allocate the whole file up front so every part can write at its own offset
+                fileChannel.write(ByteBuffer.wrap(new byte[1]), totalBytes - 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            logger.debug("Downloading " + mediaType + " " + fileId + " in " + partCount + " parts");
+            for (int i = 1; i < partCount; i++) {
+                parts.add(startPart(state.getParts().get(i)));
+            }
+
+            // The first request keeps going until the end of the first part
+            return newSubscriber(state.getParts().get(0));
+        }
+
+        CompletableFuture<HttpResponse<Long>> startPart(DownloadState.Part part) {
+            var start = part.getStart() + part.getReceived();
+            var end = part.getStart() + part.getLength() - 1;
+
+            return transferClient.downloadAsync(mediaType, fileId, "bytes=" + start + "-" + end, partInfo -> {
+                if (partInfo.statusCode() != 206) {
+                    throw new RangeNotSupportedException();
+                }
+
+                // The checksum always covers the whole file, so the response of any part can tell it when resuming
+                if (state.getExpectedChecksum() == Checksums.UNKNOWN) {
+                    state.setExpectedChecksum(Checksums.fromHeaders(partInfo.headers()));
+                }
+
+                return newSubscriber(part);
+            });
+        }
+
+        // A part that starts while the transfer is being cancelled is stopped right away
+        FileWriteSubscriber newSubscriber(DownloadState.Part part) {
+            var subscriber = new FileWriteSubscriber(fileChannel, part, bufferSize, this::addProgress);
+            subscribers.add(subscriber);
+            if (cancelled) {
+                subscriber.cancel();
+            }
+
+            return subscriber;
+        }
+
+        // Cancel the futures and the subscriptions of every response, cancelling a future alone leaves its
+        // response writing into the file. This does not hold the lock of the transfer, since a subscriber reports
+        // its progress to it while holding its own lock.
+        void cancel() {
+            cancelled = true;
+            subscribers.forEach(FileWriteSubscriber::cancel);
+            parts.forEach(part -> part.cancel(true));
+        }
+
+        synchronized void addProgress(long bytes) {
+            metrics.recordDownloadedBytes(bytes);
+            listener.onProgress(downloaded.addAndGet(bytes), state.getTotalBytes());
+        }
+    }
+
+    private static class RangeNotSupportedException extends RuntimeException {
+        RangeNotSupportedException() {
+            super("The server did not respond with partial content to a range request");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.celestialdata.plexbotencoder.clients.models.SegmentStatus;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Uploads encoded files to the bot. The file is read straight from a file channel in large buffers, and can be
+// split into parts that are sent over parallel connections and put back together by the bot. A part that fails
+// is sent again on its own instead of starting the whole upload over. Every part is checked against the checksum
+// the bot reports for what it received, and the bot checks the file it puts together against the checksum of all parts.
+@ApplicationScoped
+public class MediaUploader {
+    private static final Logger logger = Logger.getLogger(MediaUploader.class);
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private volatile boolean chunkedSupported = true;
+    private volatile boolean chunkedConfirmed = false;
+
+    @ConfigProperty(name = "AppSettings.uploadBufferSize", defaultValue = "4194304")
+    int bufferSize;
+
+    @ConfigProperty(name = "AppSettings.chunkedUpload", defaultValue = "false")
+    boolean chunkedUpload;
+
+    @ConfigProperty(name = "AppSettings.uploadConnections", defaultValue = "1")
+    int connections;
+
+    @ConfigProperty(name = "AppSettings.uploadPartSize", defaultValue = "67108864")
+    long partSize;
+
+    @ConfigProperty(name = "AppSettings.uploadRetries", defaultValue = "3")
+    int retries;
+
+    @ConfigProperty(name = "AppSettings.verifyChecksums", defaultValue = "true")
+    boolean verifyChecksums;
+
+    @Inject
+    TransferClient transferClient;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @FunctionalInterface
+    public interface UploadListener {
+        void onProgress(long bytesUploaded, long totalBytes);
+    }
+
+    // Upload a file as the new file of a media item
+    public void upload(String mediaType, int fileId, Path file, UploadListener listener) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var upload = new Upload(mediaType, fileId, fileChannel, fileChannel.size(), listener);
+
+            if (chunkedUpload && chunkedSupported) {
+                try {
+                    uploadParts(upload);
+                    return;
+                } catch (WebApplicationException e) {
+                    var status = e.getResponse().getStatus();
+                    if (chunkedConfirmed || (status != 404 && status != 405)) {
+                        throw e;
+                    }
+
+                    // Older versions of the bot only accept the whole file in one request
+                    logger.info("The bot does not support uploads in parts, uploading the whole file in one request");
+                    chunkedSupported = false;
+                    upload.resetProgress();
+                }
+            }
+
+            var wholeFile = new Part(0, 0, upload.totalBytes);
+            await(upload, send(upload, wholeFile, 0, body -> transferClient.uploadAsync(mediaType, fileId, body)));
+        }
+    }
+
+    // Upload an encoded segment of a title that is encoded by several workers. The segment is sent only once, because
+    // a repeated upload could be answered without the request to join the segments that the first one got.
+    public SegmentStatus uploadSegment(String mediaType, long mediaId, int index, Path file, UploadListener listener)
+            throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var totalBytes = fileChannel.size();
+            var uploaded = new AtomicLong();
+            var body = new FileRegionPublisher(fileChannel, 0, totalBytes, bufferSize, bytes -> {
+                metrics.recordUploadedBytes(bytes);
+                listener.onProgress(uploaded.addAndGet(bytes), totalBytes);
+            });
+
+            HttpResponse<byte[]> response;
+            try {
+                response = transferClient.uploadSegmentAsync(mediaType, mediaId, index, body).get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+
+            if (response.statusCode() >= 300) {
+                throw new WebApplicationException(response.statusCode());
+            }
+
+            var received = Checksums.fromHeaders(response.headers());
+            if (verifyChecksums && received != Checksums.UNKNOWN && received != body.getChecksum()) {
+                metrics.recordChecksumMismatch("upload");
+                throw new IOException("The bot received a damaged copy of segment " + (index + 1) + " of " + mediaType + " " + mediaId);
+            }
+
+            return response.body().length > 0 ? objectMapper.readValue(response.body(), SegmentStatus.class) : null;
+        }
+    }
+
+    private void uploadParts(Upload upload) throws IOException, InterruptedException {
+        var partCount = (int) Math.max(1, (upload.totalBytes + partSize - 1) / partSize);
+        for (int i = 0; i < partCount; i++) {
+            upload.parts.add(new Part(i, i * partSize, Math.min(partSize, upload.totalBytes - i * partSize)));
+        }
+
+        // Until the bot has accepted a part, the first part is sent on its own to find out if it supports them
+        if (!chunkedConfirmed) {
+            await(upload, sendNextPart(upload, false));
+            chunkedConfirmed = true;
+        }
+
+        var connectionCount = Math.min(Math.max(1, connections), partCount);
+        var lanes = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < connectionCount; i++) {
+            lanes.add(sendNextPart(upload, true));
+        }
+
+        await(upload, CompletableFuture.allOf(lanes.toArray(new CompletableFuture[0])));
+
+        // The parts stay with the bot until they are put together, so this can be asked again as well
+        var checksum = verifyChecksums ? upload.getChecksum() : Checksums.UNKNOWN;
+        await(upload, send(upload, null, 0, body -> transferClient.completeUploadAsync(upload.mediaType, upload.fileId,
+                partCount, upload.totalBytes, checksum)));
+    }
+
+    // Send the next part that no connection has taken yet, and keep going with the following parts
+    private CompletableFuture<Void> sendNextPart(Upload upload, boolean continueWithNext) {
+        var index = upload.nextPart.getAndIncrement();
+        if (index >= upload.parts.size() || upload.failed) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var part = upload.parts.get(index);
+        var sent = send(upload, part, 0, body -> transferClient.uploadPartAsync(upload.mediaType, upload.fileId, part.index,
+                part.start, upload.totalBytes, body));
+        return continueWithNext ? sent.thenCompose(ignored -> sendNextPart(upload, true)) : sent;
+    }
+
+    // Send a part, and send it again after a growing delay when the connection failed, the bot had a temporary problem
+    // or the bot received a damaged copy. Without a part the request completes an upload in parts.
+    private CompletableFuture<Void> send(Upload upload, Part part, int attempt,
+                                         Function<FileRegionPublisher, CompletableFuture<HttpResponse<Void>>> request) {
+        var body = part != null ? upload.publish(part) : null;
+        return request.apply(body).handle((response, error) -> {
+            var accepted = error == null && response.statusCode() < 300;
+            var damaged = accepted && body != null && !isIntact(part, body, response);
+            if (accepted && !damaged) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            var status = error == null && !damaged ? response.statusCode() : 0;
+            var retryable = error != null || damaged || status >= 500 || status == 408 || status == 429;
+            if (!retryable || attempt >= retries || upload.failed) {
+                upload.failed = true;
+                return CompletableFuture.<Void>failedFuture(error != null ? error : damaged ?
+                        new IOException("The bot received a damaged copy of " + upload.mediaType + " " + upload.fileId) :
+                        new WebApplicationException(status));
+            }
+
+            // The bytes of the failed attempt are sent again
+            if (part != null) {
+                upload.addProgress(-part.sent.getAndSet(0));
+            }
+
+            var delay = RETRY_DELAY_MILLIS << attempt;
+            logger.warn("Failed to " + (part != null ? "upload part " + (part.index + 1) : "complete the upload") + " of " +
+                    upload.mediaType + " " + upload.fileId + ", " +
+                    (error != null ? error.getMessage() : damaged ? "the checksum reported by the bot does not match" :
+                            "server returned a " + status + " error code") + ". Retrying in " + delay + " ms");
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> send(upload, part, attempt + 1, request));
+        }).thenCompose(Function.identity());
+    }
+
+    // Keep the checksum of what was sent, and compare it to the checksum of what the bot received if it reports one
+    private boolean isIntact(Part part, FileRegionPublisher body, HttpResponse<Void> response) {
+        part.checksum = body.getChecksum();
+
+        var received = Checksums.fromHeaders(response.headers());
+        if (!verifyChecksums || received == Checksums.UNKNOWN || received == part.checksum) {
+            return true;
+        }
+
+        metrics.recordChecksumMismatch("upload");
+        return false;
+    }
+
+    private void await(Upload upload, CompletableFuture<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            upload.failed = true;
+            throw e;
+        } catch (ExecutionException e) {
+            upload.failed = true;
+
+            var cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private static class Part {
+        final int index;
+        final long start;
+        final long length;
+        final AtomicLong sent = new AtomicLong();
+        volatile long checksum = Checksums.UNKNOWN;
+
+        Part(int index, long start, long length) {
+            this.index = index;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private class Upload {
+        final List<Part> parts = new ArrayList<>();
+        final AtomicInteger nextPart = new AtomicInteger();
+        final AtomicLong uploaded = new AtomicLong();
+        final String mediaType;
+        final int fileId;
+        final FileChannel fileChannel;
+        final long totalBytes;
+        final UploadListener listener;
+        volatile boolean failed = false;
+
+        Upload(String mediaType, int fileId, FileChannel fileChannel, long totalBytes, UploadListener listener) {
+            this.mediaType = mediaType;
+            this.fileId = fileId;
+            this.fileChannel = fileChannel;
+            this.totalBytes = totalBytes;
+            this.listener = listener;
+        }
+
+        FileRegionPublisher publish(Part part) {
+            return new FileRegionPublisher(fileChannel, part.start, part.length, bufferSize, bytes -> {
+                part.sent.addAndGet(bytes);
+                metrics.recordUploadedBytes(bytes);
+                addProgress(bytes);
+            });
+        }
+
+        // The CRC32C of the whole file put together from the checksums of the parts that were sent
+        long getChecksum() {
+            var checksum = 0L;
+            for (Part part : parts) {
+                checksum = Checksums.combine(checksum, part.checksum, part.length);
+            }
+
+            return checksum;
+        }
+
+        void addProgress(long bytes) {
+            listener.onProgress(uploaded.addAndGet(bytes), totalBytes);
+        }
+
+        // Start over after the bot turned down the upload in parts
+        void resetProgress() {
+            parts.clear();
+            nextPart.set(0);
+            failed = false;
+            addProgress(-uploaded.get());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// The body of a request that sends whatever is written to an output stream while it is being written. Every write
+// is handed straight to the HTTP client on the thread that writes it, which waits while the client has not asked
+// for more, so the data moves as fast as the network takes it and no other thread waits for it. The body ends when
+// it is completed or failed, closing the stream does not end it. A stream can only be sent once, so the HTTP client
+// can not send the request again.
+class OutputStreamPublisher implements HttpRequest.BodyPublisher {
+    private final Object signalLock = new Object();
+    private final OutputStream outputStream = new PublisherOutputStream();
+    private final LongConsumer listener;
+    private final CRC32C checksum = new CRC32C();
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean finished = false;
+    private volatile Throwable failure;
+
+    OutputStreamPublisher(LongConsumer listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    // The CRC32C of everything that has been handed to the HTTP client
+    long getChecksum() {
+        synchronized (signalLock) {
+            return checksum.getValue();
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> newSubscriber) {
+        boolean alreadyFinished;
+        synchronized (this) {
+            if (subscriber != null) {
+                newSubscriber.onSubscribe(new Subscription());
+                newSubscriber.onError(new IllegalStateException("A streamed body can only be sent once"));
+                return;
+            }
+
+            subscriber = newSubscriber;
+            alreadyFinished = finished;
+            notifyAll();
+        }
+
+        synchronized (signalLock) {
+            newSubscriber.onSubscribe(new Subscription());
+            if (alreadyFinished) {
+                signalEnd(newSubscriber);
+            }
+        }
+    }
+
+    // End the body after everything has been written
+    void complete() {
+        finish(null);
+    }
+
+    // End the body with an error, so the request fails instead of sending a truncated file
+    void fail(Throwable error) {
+        finish(error);
+    }
+
+    private void finish(Throwable error) {
+        Flow.Subscriber<? super ByteBuffer> currentSubscriber;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+
+            finished = true;
+            failure = error;
+            currentSubscriber = subscriber;
+            notifyAll();
+        }
+
+        // A subscriber that arrives later is told when it subscribes
+        if (currentSubscriber != null) {
+            synchronized (signalLock) {
+                signalEnd(currentSubscriber);
+            }
+        }
+    }
+
+    private void signalEnd(Flow.Subscriber<? super ByteBuffer> target) {
+        if (failure != null) {
+            target.onError(failure);
+        } else {
+            target.onComplete();
+        }
+    }
+
+    private synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private synchronized Flow.Subscriber<? super ByteBuffer> awaitDemand() throws IOException {
+        try {
+            while (!cancelled && !finished && (subscriber == null || demand == 0)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the upload to take more data", e);
+        }
+
+        if (cancelled) {
+            throw new IOException("The upload was cancelled");
+        } else if (finished) {
+            throw new IOException("The upload has already ended");
+        }
+
+        demand -= 1;
+        return subscriber;
+    }
+
+    private class Subscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            synchronized (OutputStreamPublisher.this) {
+                if (n <= 0) {
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+
+                OutputStreamPublisher.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (OutputStreamPublisher.this) {
+                cancelled = true;
+                OutputStreamPublisher.this.notifyAll();
+            }
+        }
+    }
+
+    private class PublisherOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        // The caller reuses its array, so every write is copied into a buffer of its own
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+
+            var buffer = ByteBuffer.allocate(length).put(bytes, offset, length).flip();
+            var target = awaitDemand();
+            listener.accept(length);
+            synchronized (signalLock) {
+                if (isFinished()) {
+                    throw new IOException("The upload has already ended");
+                }
+
+                checksum.update(bytes, offset, length);
+                target.onNext(buffer);
+            }
+        }
+    }
+}
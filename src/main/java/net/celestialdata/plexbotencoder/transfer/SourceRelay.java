@@ -0,0 +1,119 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import net.celestialdata.plexbotencoder.utilities.NamedThreadFactory;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+// Lets ffmpeg read the source file of a media item straight from the bot. ffmpeg seeks in an http input with range
+// requests, so an encode of a part of a title only downloads that part. The requests are sent to an address on the
+// loopback interface and passed on to the bot with the credentials of the worker, which keeps the credentials off
+// the command line of ffmpeg and out of the log that shows it.
+@ApplicationScoped
+public class SourceRelay {
+    private static final Logger logger = Logger.getLogger(SourceRelay.class);
+    private static final Pattern SOURCE_PATH = Pattern.compile("/([0-9a-f]+)/([a-z]+)/(\\d+)");
+    private static final List<String> FORWARDED_HEADERS = List.of("Content-Range", "Accept-Ranges", "Content-Type", Checksums.DIGEST_HEADER);
+
+    // Only the ffmpeg processes of this worker are given the token, so other local processes can not read through it
+    private final String token = createToken();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @Inject
+    TransferClient transferClient;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    // The address ffmpeg reads the file of a media item from, the relay is started by the first job that needs it
+    public synchronized String getUrl(String mediaType, int fileId) throws IOException {
+        if (server == null) {
+            executor = Executors.newCachedThreadPool(new NamedThreadFactory("source-relay", true));
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(executor);
+            server.createContext("/", this::relay);
+            server.start();
+        }
+
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/" + token + "/" + mediaType + "/" + fileId;
+    }
+
+    @PreDestroy
+    synchronized void destroy() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void relay(HttpExchange exchange) {
+        try {
+            var matcher = SOURCE_PATH.matcher(exchange.getRequestURI().getPath());
+            if (!matcher.matches() || !matcher.group(1).equals(token) || !exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            HttpResponse<InputStream> response;
+            try {
+                response = transferClient.downloadAsync(matcher.group(2), Integer.parseInt(matcher.group(3)),
+                        exchange.getRequestHeaders().getFirst("Range"), HttpResponse.BodyHandlers.ofInputStream()).get();
+            } catch (ExecutionException e) {
+                logger.warn("Failed to pass the request of the encoder for " + matcher.group(2) + " " + matcher.group(3) + " on to the bot", e.getCause());
+                exchange.sendResponseHeaders(502, -1);
+                return;
+            }
+
+            // Closing the body stops the response from the bot, ffmpeg drops its connection whenever it seeks
+            try (var body = metrics.countDownload(response.body())) {
+                for (String header : FORWARDED_HEADERS) {
+                    response.headers().firstValue(header).ifPresent(value -> exchange.getResponseHeaders().add(header, value));
+                }
+
+                if (response.statusCode() >= 300) {
+                    exchange.sendResponseHeaders(response.statusCode(), -1);
+                    return;
+                }
+
+                var contentLength = response.headers().firstValueAsLong("Content-Length").orElse(0);
+                exchange.sendResponseHeaders(response.statusCode(), Math.max(0, contentLength));
+                body.transferTo(exchange.getResponseBody());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.debug("The encoder stopped reading a source before its end", e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String createToken() {
+        var bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+
+        var token = new StringBuilder();
+        for (byte value : bytes) {
+            token.append(String.format("%02x", value));
+        }
+
+        return token.toString();
+    }
+}
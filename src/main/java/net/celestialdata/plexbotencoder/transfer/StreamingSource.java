@@ -0,0 +1,137 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import net.celestialdata.plexbotencoder.utilities.FileType;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+public class StreamingSource implements Closeable {
+    private final InputStream downloadStream;
+    private final Path spillPath;
+    private final CRC32C spilledChecksum = new CRC32C();
+    private final CRC32C encoderChecksum = new CRC32C();
+    private long spilledBytes = 0;
+    private boolean streamable = true;
+    private CountingInputStream encoderStream;
+
+    private StreamingSource(InputStream downloadStream, Path spillPath) {
+        this.downloadStream = downloadStream;
+        this.spillPath = spillPath;
+    }
+
+    // Inspect the start of the download and decide if ffmpeg can read it straight from the network.
+    // Anything read while deciding is spilled to disk so that it can either be replayed in front of the
+    // remaining stream or become the start of a regular staged download.
+    public static StreamingSource open(InputStream downloadStream, Path spillPath, String fileExtension, long spillLimit) throws IOException {
+        var source = new StreamingSource(downloadStream, spillPath);
+
+        // Only ISO base media files (mp4, m4v) can keep their index at the end of the file, every other
+        // supported container can be demuxed from a pipe without seeking
+        var fileType = FileType.determineFiletype("." + fileExtension);
+        if (fileType == FileType.MP4 || fileType == FileType.M4V) {
+            source.probeMovieBoxes(spillLimit);
+        }
+
+        return source;
+    }
+
+    private void probeMovieBoxes(long spillLimit) throws IOException {
+        try (var spillOutputStream = new BufferedOutputStream(Files.newOutputStream(spillPath))) {
+            var countingStream = new CountingInputStream(new CheckedInputStream(
+                    new TeeInputStream(downloadStream, spillOutputStream, false), spilledChecksum));
+            var dataStream = new DataInputStream(countingStream);
+            var boxType = new byte[4];
+
+            // Walk the top level boxes until the movie header or the media data shows up. If the media data
+            // comes first, ffmpeg would need to seek to the end of the file so it can not be streamed.
+            while (true) {
+                if (countingStream.getByteCount() > spillLimit) {
+                    streamable = false;
+                    break;
+                }
+
+                long boxSize;
+                long headerSize = 8;
+                try {
+                    boxSize = Integer.toUnsignedLong(dataStream.readInt());
+                    dataStream.readFully(boxType);
+                    if (boxSize == 1) {
+                        boxSize = dataStream.readLong();
+                        headerSize = 16;
+                    }
+                } catch (EOFException e) {
+                    streamable = false;
+                    break;
+                }
+
+                var type = new String(boxType, StandardCharsets.US_ASCII);
+                if (type.equals("moov")) {
+                    streamable = true;
+                    break;
+                } else if (type.equals("mdat") || boxSize < headerSize) {
+                    streamable = false;
+                    break;
+                }
+
+                IOUtils.skipFully(dataStream, boxSize - headerSize);
+            }
+
+            spilledBytes = countingStream.getByteCount();
+        }
+    }
+
+    public boolean isStreamable() {
+        return streamable;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // The CRC32C of the bytes that were spilled to disk, a staged download continues it with the rest of the file
+    public long getSpilledChecksum() {
+        return spilledChecksum.getValue();
+    }
+
+    // The part of the download that has not been spilled to disk yet
+    public InputStream getRemainingStream() {
+        return downloadStream;
+    }
+
+    // The complete source for ffmpeg, made up of the spilled bytes followed by the rest of the download
+    public InputStream openEncoderStream() throws IOException {
+        InputStream stream = downloadStream;
+        if (spilledBytes > 0) {
+            stream = new SequenceInputStream(new BufferedInputStream(Files.newInputStream(spillPath)), downloadStream);
+        }
+
+        encoderStream = new CountingInputStream(new CheckedInputStream(stream, encoderChecksum));
+        return encoderStream;
+    }
+
+    // The number of bytes of the source that ffmpeg has read so far
+    public long getBytesRead() {
+        return encoderStream == null ? 0 : encoderStream.getByteCount();
+    }
+
+    // The CRC32C of the bytes of the source that ffmpeg has read, it covers the whole file once ffmpeg has read all of it
+    public long getChecksum() {
+        return encoderChecksum.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (encoderStream != null) {
+            encoderStream.close();
+        } else {
+            downloadStream.close();
+        }
+    }
+}
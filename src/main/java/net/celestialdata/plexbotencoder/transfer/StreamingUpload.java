@@ -0,0 +1,83 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Uploads the output of the encoder while it is being written. The encoder output is the body of the upload
+// request itself, so the pipe thread of the encoder hands every block to the HTTP client and no thread of its
+// own waits for the upload.
+public class StreamingUpload {
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final OutputStreamPublisher body;
+    private CompletableFuture<HttpResponse<Void>> uploadFuture;
+    private volatile boolean finished = false;
+
+    private StreamingUpload(LongConsumer listener) {
+        this.body = new OutputStreamPublisher(bytes -> {
+            bytesUploaded.addAndGet(bytes);
+            listener.accept(bytes);
+        });
+    }
+
+    // Start uploading everything that gets written to the encoder output
+    public static StreamingUpload start(TransferClient transferClient, String mediaType, int mediaId, LongConsumer listener) {
+        var upload = new StreamingUpload(listener);
+        upload.uploadFuture = transferClient.uploadAsync(mediaType, mediaId, upload.body);
+        return upload;
+    }
+
+    public OutputStream getEncoderOutput() {
+        return body.getOutputStream();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    // The CRC32C of the output that has been sent so far
+    public long getChecksum() {
+        return body.getChecksum();
+    }
+
+    // Mark the output as complete and wait for the server to accept the upload. Returns the checksum of what the
+    // server received, or UNKNOWN if it did not send one.
+    public long finish() throws Exception {
+        body.complete();
+
+        HttpResponse<Void> response;
+        try {
+            response = uploadFuture.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        if (response.statusCode() >= 300) {
+            throw new WebApplicationException(response.statusCode());
+        }
+
+        finished = true;
+        return Checksums.fromHeaders(response.headers());
+    }
+
+    // Cancel the upload unless the server has accepted it, the request fails instead of handing a truncated file
+    // to the server. Does nothing after a successful finish, so it can be called whenever a job ends.
+    public void abort() {
+        if (finished) {
+            return;
+        }
+
+        body.fail(new IOException("The encoder stopped before the output was complete"));
+
+        try {
+            uploadFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ignored) {}
+    }
+}
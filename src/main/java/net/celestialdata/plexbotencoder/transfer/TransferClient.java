@@ -0,0 +1,179 @@
+package net.celestialdata.plexbotencoder.transfer;
+
+import net.celestialdata.plexbotencoder.clients.AuthorizationHeaderFactory;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import net.celestialdata.plexbotencoder.utilities.NamedThreadFactory;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// The REST clients buffer request bodies before sending them, which defeats streaming the
+// media files. File transfers therefore go through a plain HTTP client that sends the data
+// as it is produced. The client multiplexes every connection on its selector thread and only
+// borrows a thread from its own pool to hand each buffer on, so the requests themselves hold no
+// thread while they wait for the network. Only the callers that wait for a response, or read a
+// body as a plain stream, block a thread of their own.
+@ApplicationScoped
+public class TransferClient {
+    private ExecutorService executor;
+    private HttpClient httpClient;
+
+    @ConfigProperty(name = "AppSettings.apiAddress/mp-rest/url")
+    String apiAddress;
+
+    @Inject
+    PipelineMetrics metrics;
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newCachedThreadPool(new NamedThreadFactory("http-transfer", true));
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(30))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    @PreDestroy
+    void destroy() {
+        executor.shutdownNow();
+    }
+
+    // Start downloading the file of a media item, optionally limited to a byte range
+    public <T> CompletableFuture<HttpResponse<T>> downloadAsync(String mediaType, int id, String range, HttpResponse.BodyHandler<T> bodyHandler) {
+        var requestBuilder = HttpRequest.newBuilder(buildUri(mediaType, "/download/" + id))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .header("Accept", "application/octet-stream")
+                .GET();
+
+        if (range != null) {
+            requestBuilder.header("Range", range);
+        }
+
+        return httpClient.sendAsync(requestBuilder.build(), bodyHandler);
+    }
+
+    // The size of the file of a media item, or -1 if the bot does not tell
+    public long getDownloadSize(String mediaType, int id) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(buildUri(mediaType, "/download/" + id))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+
+        var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() >= 300) {
+            return -1;
+        }
+
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    // Open the download of a media item as a plain stream. This waits for the response headers on the calling thread,
+    // the body arrives in the background and blocks only the reader of the stream while it waits for data.
+    public HttpResponse<InputStream> openDownload(String mediaType, int id) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response;
+        try {
+            response = downloadAsync(mediaType, id, null, HttpResponse.BodyHandlers.ofInputStream()).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        if (response.statusCode() >= 300) {
+            response.body().close();
+            throw new WebApplicationException(response.statusCode());
+        }
+
+        return response;
+    }
+
+    // Start uploading a whole file as the new file of a media item
+    public CompletableFuture<HttpResponse<Void>> uploadAsync(String mediaType, int id, HttpRequest.BodyPublisher body) {
+        var request = HttpRequest.newBuilder(buildUri(mediaType, "/upload"))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .header("Content-Type", "application/octet-stream")
+                .header("Content-Id", String.valueOf(id))
+                .POST(body)
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    // Start uploading one part of a file that is sent in parts, the bot puts the parts together by their byte ranges
+    public CompletableFuture<HttpResponse<Void>> uploadPartAsync(String mediaType, int id, int index, long start, long totalBytes,
+                                                                 HttpRequest.BodyPublisher body) {
+        var end = start + body.contentLength() - 1;
+        var request = HttpRequest.newBuilder(buildUri(mediaType, "/upload/" + id + "/parts/" + index))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .header("Content-Type", "application/octet-stream")
+                .header("Content-Range", "bytes " + start + "-" + end + "/" + totalBytes)
+                .PUT(body)
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    // Ask the bot to put the uploaded parts together into the new file of a media item
+    public CompletableFuture<HttpResponse<Void>> completeUploadAsync(String mediaType, int id, int partCount, long totalBytes, long checksum) {
+        var requestBuilder = HttpRequest.newBuilder(buildUri(mediaType, "/upload/" + id + "/complete?parts=" + partCount + "&size=" + totalBytes))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .POST(HttpRequest.BodyPublishers.noBody());
+
+        // The bot checks the file it put together against the checksum of the parts that were sent
+        if (checksum != Checksums.UNKNOWN) {
+            requestBuilder.header(Checksums.DIGEST_HEADER, Checksums.toDigest(checksum));
+        }
+
+        return httpClient.sendAsync(requestBuilder.build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    // Start uploading an encoded segment of a title that is encoded by several workers, the bot answers with the
+    // status of the segments of the title as JSON
+    public CompletableFuture<HttpResponse<byte[]>> uploadSegmentAsync(String mediaType, long mediaId, int index, HttpRequest.BodyPublisher body) {
+        var request = HttpRequest.newBuilder(buildSegmentUri(mediaType, mediaId, index))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .header("Content-Type", "application/octet-stream")
+                .header("Accept", "application/json")
+                .POST(body)
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    // Start downloading an encoded segment that another worker uploaded
+    public <T> CompletableFuture<HttpResponse<T>> downloadSegmentAsync(String mediaType, long mediaId, int index, HttpResponse.BodyHandler<T> bodyHandler) {
+        var request = HttpRequest.newBuilder(buildSegmentUri(mediaType, mediaId, index))
+                .header("Authorization", AuthorizationHeaderFactory.basicAuthorization())
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build();
+
+        return httpClient.sendAsync(request, bodyHandler);
+    }
+
+    private URI buildSegmentUri(String mediaType, long mediaId, int index) {
+        var baseAddress = apiAddress.endsWith("/") ? apiAddress.substring(0, apiAddress.length() - 1) : apiAddress;
+        return URI.create(baseAddress + "/api/v1/encoding/segments/" + mediaType + "/" + mediaId + "/" + index);
+    }
+
+    private URI buildUri(String mediaType, String path) {
+        var baseAddress = apiAddress.endsWith("/") ? apiAddress.substring(0, apiAddress.length() - 1) : apiAddress;
+        var mediaPath = mediaType.equals("movie") ? "/api/v1/movies" : "/api/v1/episodes";
+        return URI.create(baseAddress + mediaPath + path);
+    }
+}
@@ -19,8 +19,25 @@ public class ConfigInterceptor implements ConfigSourceInterceptor {
                 configValue = configValue.withValue("false");
                 break;
             case "quarkus.log.level":
+                // Keep the default level when the config file does not set one, such as during a build
                 var logLevel = context.proceed("AppSettings.logLevel");
-                configValue = logLevel.withName(name);
+                if (logLevel != null) {
+                    configValue = logLevel.withName(name);
+                }
+                break;
+            case "quarkus.http.host-enabled":
+                // Turn the HTTP server on when a metrics port is set. Without one the setting is left as it is,
+                // so the server stays off only where the config turns it off, like the installer config does
+                var metricsHost = context.proceed("AppSettings.metricsPort");
+                if (metricsHost != null) {
+                    configValue = metricsHost.withName(name).withValue("true");
+                }
+                break;
+            case "quarkus.http.port":
+                var metricsPort = context.proceed("AppSettings.metricsPort");
+                if (metricsPort != null) {
+                    configValue = metricsPort.withName(name);
+                }
                 break;
         }
 
@@ -0,0 +1,24 @@
+package net.celestialdata.plexbotencoder.utilities;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Names the threads of a pool after what they do, so thread dumps and log lines show which stage of the pipeline
+// a thread belongs to. Daemon threads never keep the worker from exiting.
+public class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final String prefix;
+    private final boolean daemon;
+
+    public NamedThreadFactory(String prefix, boolean daemon) {
+        this.prefix = prefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        var thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
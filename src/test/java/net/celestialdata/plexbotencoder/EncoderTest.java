@@ -0,0 +1,138 @@
+package net.celestialdata.plexbotencoder;
+
+import net.celestialdata.plexbotencoder.clients.MediaCache;
+import net.celestialdata.plexbotencoder.clients.models.Movie;
+import net.celestialdata.plexbotencoder.clients.models.WorkItem;
+import net.celestialdata.plexbotencoder.clients.services.HistoryService;
+import net.celestialdata.plexbotencoder.clients.services.SegmentService;
+import net.celestialdata.plexbotencoder.clients.services.WorkService;
+import net.celestialdata.plexbotencoder.encoding.EncodeDecision;
+import net.celestialdata.plexbotencoder.encoding.EncodePlanner;
+import net.celestialdata.plexbotencoder.encoding.MediaProbe;
+import net.celestialdata.plexbotencoder.encoding.PresetSelector;
+import net.celestialdata.plexbotencoder.encoding.SegmentedEncoder;
+import net.celestialdata.plexbotencoder.encoding.backends.EncoderBackend;
+import net.celestialdata.plexbotencoder.encoding.backends.EncoderBackends;
+import net.celestialdata.plexbotencoder.jobs.JobSlot;
+import net.celestialdata.plexbotencoder.metrics.PipelineMetrics;
+import net.celestialdata.plexbotencoder.storage.StorageReservation;
+import net.celestialdata.plexbotencoder.storage.TempStorage;
+import net.celestialdata.plexbotencoder.transfer.MediaDownloader;
+import net.celestialdata.plexbotencoder.transfer.TransferClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class EncoderTest {
+    @TempDir
+    Path tempFolder;
+
+    private Encoder encoder;
+    private JobSlot slot;
+
+    @BeforeEach
+    void createEncoder() throws Exception {
+        encoder = new Encoder();
+        encoder.workerName = "test-worker";
+        encoder.crf = "22";
+        encoder.tempFolder = tempFolder.toString();
+        encoder.transferClient = mock(TransferClient.class);
+        encoder.mediaDownloader = mock(MediaDownloader.class);
+        encoder.mediaProbe = mock(MediaProbe.class);
+        encoder.mediaCache = mock(MediaCache.class);
+        encoder.encodePlanner = mock(EncodePlanner.class);
+        encoder.presetSelector = mock(PresetSelector.class);
+        encoder.encoderBackends = mock(EncoderBackends.class);
+        encoder.segmentedEncoder = mock(SegmentedEncoder.class);
+        encoder.tempStorage = mock(TempStorage.class);
+        encoder.metrics = mock(PipelineMetrics.class);
+        encoder.workService = mock(WorkService.class);
+        encoder.historyService = mock(HistoryService.class);
+        encoder.segmentService = mock(SegmentService.class);
+
+        var movie = new Movie();
+        movie.id = 7;
+        movie.tmdbId = 42L;
+        movie.filetype = "mkv";
+        movie.duration = 60;
+        when(encoder.mediaCache.get("movie", 42L)).thenReturn(movie);
+
+        var reservation = mock(StorageReservation.class);
+        when(reservation.getSourceFolder()).thenReturn(tempFolder);
+        when(reservation.getOutputFolder()).thenReturn(tempFolder);
+        when(encoder.tempStorage.reserve(anyLong(), anyLong())).thenReturn(reservation);
+
+        when(encoder.encoderBackends.getBackend()).thenReturn(mock(EncoderBackend.class));
+        when(encoder.encodePlanner.decide(any(), any(), any())).thenReturn(EncodeDecision.ENCODE);
+
+        var workItem = new WorkItem();
+        workItem.id = 1;
+        workItem.mediaType = "movie";
+        workItem.mediaId = 42L;
+
+        slot = new JobSlot(0);
+        slot.tryAcquire();
+        slot.setWorkItem(workItem);
+    }
+
+    // An encode that fails with something other than an IO error must still end the streamed upload, otherwise
+    // the request waits forever for the rest of the output
+    @Test
+    @Timeout(30)
+    void cancelsStreamedUploadWhenEncodeThrowsUncheckedException() throws Exception {
+        encoder.streamingUpload = true;
+        var upload = new RecordingSubscriber();
+        when(encoder.transferClient.uploadAsync(eq("movie"), eq(7), any())).thenAnswer(invocation -> {
+            HttpRequest.BodyPublisher body = invocation.getArgument(2);
+            body.subscribe(upload);
+            return upload.response;
+        });
+        when(encoder.mediaProbe.getDuration(any(), any(), any(), any())).thenThrow(new IllegalStateException("The probe broke"));
+
+        encoder.runJob(slot);
+
+        assertTrue(upload.response.isCompletedExceptionally(), "The upload request was left waiting for more output");
+        assertNotNull(upload.error.get(0, TimeUnit.SECONDS));
+        assertFalse(slot.isActive());
+        assertEquals(1, slot.getFailCount());
+        verify(encoder.workService).delete(1);
+    }
+
+    // Stands in for the HTTP client, it takes everything the body offers and fails the request when the body fails
+    private static class RecordingSubscriber implements Flow.Subscriber<ByteBuffer> {
+        final CompletableFuture<HttpResponse<Void>> response = new CompletableFuture<>();
+        final CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {}
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.complete(throwable);
+            response.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            response.complete(null);
+        }
+    }
+}